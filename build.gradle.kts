@@ -14,6 +14,7 @@ group = "org.symade.kiev"
 version = "0.6.0-SNAPSHOT"
 
 dependencies {
+    implementation("org.ow2.asm:asm:9.5")
     testImplementation("junit:junit:4.13.1")
     testImplementation(platform("org.spockframework:spock-bom:2.3-groovy-3.0"))
     testImplementation("org.spockframework:spock-core")
@@ -25,6 +26,59 @@ tasks.test {
     useJUnitPlatform()
 }
 
+// JMH benchmarks of the compile pipeline, run with './gradlew jmh -PjmhArgs="<jmh options>"'
+val jmh: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+
+configurations[jmh.implementationConfigurationName].extendsFrom(configurations.implementation.get())
+configurations[jmh.runtimeOnlyConfigurationName].extendsFrom(configurations.runtimeOnly.get())
+
+dependencies {
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.37")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.37")
+}
+
+tasks.register<JavaExec>("jmh") {
+    description = "Runs the JMH benchmarks of the Kiev compile pipeline."
+    group = "verification"
+    classpath = jmh.runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    args(providers.gradleProperty("jmhArgs").map { it.split(" ") }.getOrElse(emptyList()))
+}
+
+// Build-level scenarios for gradle-profiler, see src/test/resources/performance/kiev.scenarios
+val performanceBuildDir = layout.buildDirectory.dir("performance/kiev-build")
+
+val generatePerformanceBuild by tasks.registering(JavaExec::class) {
+    description = "Generates the multi-project Kiev build profiled by the gradle-profiler scenarios."
+    group = "verification"
+    classpath = sourceSets.test.get().runtimeClasspath
+    mainClass.set("org.gradle.api.performance.KievPerformanceBuild")
+    outputs.dir(performanceBuildDir)
+    args(
+        performanceBuildDir.get().asFile.path,
+        projectDir.path,
+        providers.gradleProperty("performanceProjects").getOrElse("10"),
+        providers.gradleProperty("performanceSourcesPerProject").getOrElse("200")
+    )
+}
+
+tasks.register<Exec>("profileKievBuild") {
+    description = "Runs the gradle-profiler scenarios against the generated Kiev build."
+    group = "verification"
+    dependsOn(generatePerformanceBuild)
+    val reportDir = layout.buildDirectory.dir("reports/performance/" + providers.gradleProperty("performanceLabel").getOrElse("current"))
+    commandLine(
+        "gradle-profiler", "--benchmark",
+        "--project-dir", performanceBuildDir.get().asFile.path,
+        "--scenario-file", performanceBuildDir.get().file("kiev.scenarios").asFile.path,
+        "--gradle-version", gradle.gradleHomeDir!!.path,
+        "--output-dir", reportDir.get().asFile.path
+    )
+}
+
 gradlePlugin {
     website = "https://github.com/mkizub/symade"
     vcsUrl = "https://github.com/mkizub/symade.git"
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.api.tasks;
+
+import org.openjdk.jmh.annotations.*;
+import org.symade.kiev.gradle.internal.plugins.KievJarFile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link KievRuntime#findKievJarFile} over large classpaths, with the symade jar
+ * as the last classpath entry.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KievRuntimeBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int classpathSize;
+
+    private List<File> classpath;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        classpath = new ArrayList<>();
+        for (int i = 1; i < classpathSize; i++) {
+            classpath.add(new File("libs/library-" + i + "-1.0." + i + ".jar"));
+        }
+        classpath.add(new File("libs/symade-06.jar"));
+    }
+
+    @Benchmark
+    public KievJarFile findKievJarFile() {
+        return KievRuntime.findKievJarFile(classpath);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.jmh;
+
+import org.gradle.api.tasks.WorkResult;
+import org.openjdk.jmh.annotations.*;
+import org.symade.kiev.gradle.internal.tasks.compile.InProcessKievCompiler;
+import org.symade.kiev.gradle.internal.tasks.compile.KievCompilerClassLoaderPool;
+import org.symade.kiev.gradle.internal.tasks.compile.KievJavaJointCompileSpec;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link InProcessKievCompiler#execute} end-to-end with the stub Kiev compiler, with a pooled
+ * (warm) class loader and with a class loader created for every compilation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InProcessKievCompilerBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int sourceFiles;
+
+    @Param({"pooled", "uncached"})
+    public String classLoader;
+
+    private KievBenchmarkProject project;
+    private KievCompilerClassLoaderPool pool;
+    private InProcessKievCompiler compiler;
+    private KievJavaJointCompileSpec spec;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        project = KievBenchmarkProject.create(sourceFiles);
+        spec = project.createSpec();
+        if ("pooled".equals(classLoader)) {
+            pool = new KievCompilerClassLoaderPool(4, Long.MAX_VALUE);
+        }
+        compiler = new InProcessKievCompiler(pool);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (pool != null) {
+            pool.close();
+        }
+        project.close();
+    }
+
+    @Benchmark
+    public WorkResult execute() {
+        return compiler.execute(spec);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.jmh;
+
+import org.gradle.api.Project;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.symade.kiev.gradle.api.plugins.KievPlugin;
+import org.symade.kiev.gradle.api.tasks.compile.KievCompile;
+import org.symade.kiev.gradle.internal.tasks.compile.KievJavaJointCompileSpec;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * A synthetic Kiev project for the benchmarks: a project with the Kiev plugin applied, a generated source tree
+ * of the requested size and a stub {@code kiev.Compiler} on the Kiev classpath.
+ *
+ * <p>Sources are spread over packages of {@value #FILES_PER_PACKAGE} files. Every source uses the previous
+ * source of its package and every package imports the previous package, so the sources look like a real
+ * project to the dependency analysis of the plugin.
+ */
+public final class KievBenchmarkProject implements AutoCloseable {
+    public static final int FILES_PER_PACKAGE = 50;
+
+    private final File rootDir;
+    private final File stubCompilerDir;
+    private final KievCompile compileTask;
+
+    private KievBenchmarkProject(File rootDir, int sourceFiles) throws IOException {
+        this.rootDir = rootDir;
+        generateSources(new File(rootDir, "src/main/kiev"), sourceFiles);
+        this.stubCompilerDir = compileStubCompiler(new File(rootDir, "kiev-stub"));
+
+        Project project = ProjectBuilder.builder().withProjectDir(rootDir).build();
+        project.getPluginManager().apply(KievPlugin.class);
+        this.compileTask = project.getTasks().named("compileKiev", KievCompile.class).get();
+        compileTask.setKievClasspath(project.files(stubCompilerDir));
+    }
+
+    public static KievBenchmarkProject create(int sourceFiles) {
+        try {
+            return new KievBenchmarkProject(Files.createTempDirectory("kiev-benchmark").toFile(), sourceFiles);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public KievCompile getCompileTask() {
+        return compileTask;
+    }
+
+    public File getStubCompilerDir() {
+        return stubCompilerDir;
+    }
+
+    /**
+     * Creates the compile spec the way the task does before compiling.
+     */
+    public KievJavaJointCompileSpec createSpec() {
+        try {
+            Method createSpec = KievCompile.class.getDeclaredMethod("createSpec");
+            createSpec.setAccessible(true);
+            KievJavaJointCompileSpec spec = (KievJavaJointCompileSpec) createSpec.invoke(compileTask);
+            spec.getDestinationDir().mkdirs();
+            spec.getTempDir().mkdirs();
+            return spec;
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException("Cannot create Kiev compile spec", e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Cannot create Kiev compile spec", e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        try (Stream<Path> paths = Files.walk(rootDir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void generateSources(File srcDir, int sourceFiles) throws IOException {
+        for (int i = 0; i < sourceFiles; i++) {
+            int pkg = i / FILES_PER_PACKAGE;
+            int cls = i % FILES_PER_PACKAGE;
+            StringBuilder sb = new StringBuilder();
+            sb.append("package bench.p").append(pkg).append(";\n\n");
+            if (pkg > 0) {
+                sb.append("import bench.p").append(pkg - 1).append(".C0;\n\n");
+            }
+            sb.append("public class C").append(cls).append(" {\n");
+            sb.append("    public int value;\n\n");
+            sb.append("    public int compute(int x) {\n");
+            if (cls > 0) {
+                sb.append("        return new C").append(cls - 1).append("().compute(x) + value;\n");
+            } else if (pkg > 0) {
+                sb.append("        return new bench.p").append(pkg - 1).append(".C0().compute(x) + value;\n");
+            } else {
+                sb.append("        return x + value;\n");
+            }
+            sb.append("    }\n}\n");
+
+            File file = new File(srcDir, "bench/p" + pkg + "/C" + cls + ".kj");
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static File compileStubCompiler(File dir) throws IOException {
+        File source = new File(dir, "src/kiev/Compiler.java");
+        source.getParentFile().mkdirs();
+        try (InputStream in = KievBenchmarkProject.class.getResourceAsStream("/kiev-stub/Compiler.java.txt")) {
+            if (in == null) {
+                throw new IllegalStateException("Stub Kiev compiler source not found");
+            }
+            Files.copy(in, source.toPath());
+        }
+        File classesDir = new File(dir, "classes");
+        classesDir.mkdirs();
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            throw new IllegalStateException("Benchmarks must run on a JDK to compile the stub Kiev compiler");
+        }
+        if (javac.run(null, null, null, "-d", classesDir.getPath(), source.getPath()) != 0) {
+            throw new IllegalStateException("Cannot compile the stub Kiev compiler");
+        }
+        return classesDir;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.jmh;
+
+import org.openjdk.jmh.annotations.*;
+import org.symade.kiev.gradle.internal.tasks.compile.KievJavaJointCompileSpec;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the creation of the compile spec by {@code KievCompile}, which resolves the source tree
+ * and the classpaths of the task.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KievCompileSpecBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int sourceFiles;
+
+    private KievBenchmarkProject project;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        project = KievBenchmarkProject.create(sourceFiles);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        project.close();
+    }
+
+    @Benchmark
+    public KievJavaJointCompileSpec createSpec() {
+        return project.createSpec();
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.jmh;
+
+import org.gradle.api.tasks.WorkResult;
+import org.gradle.api.tasks.WorkResults;
+import org.openjdk.jmh.annotations.*;
+import org.symade.kiev.gradle.internal.tasks.compile.KievJavaJointCompileSpec;
+import org.symade.kiev.gradle.internal.tasks.compile.NormalizingKievCompiler;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead {@link NormalizingKievCompiler} adds in front of the actual compiler,
+ * which is replaced by one doing nothing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NormalizingKievCompilerBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int sourceFiles;
+
+    private KievBenchmarkProject project;
+    private NormalizingKievCompiler compiler;
+    private KievJavaJointCompileSpec spec;
+    private Iterable<File> sources;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        project = KievBenchmarkProject.create(sourceFiles);
+        spec = project.createSpec();
+        sources = spec.getSourceFiles();
+        compiler = new NormalizingKievCompiler(s -> WorkResults.didWork(true));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        project.close();
+    }
+
+    @Benchmark
+    public WorkResult execute() {
+        // the compiler replaces the sources file tree by a list, start from the file tree every time
+        spec.setSourceFiles(sources);
+        return compiler.execute(spec);
+    }
+}
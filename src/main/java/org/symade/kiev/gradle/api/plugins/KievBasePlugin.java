@@ -22,7 +22,6 @@ import org.gradle.api.artifacts.ConfigurationContainer;
 import org.gradle.api.attributes.LibraryElements;
 import org.gradle.api.file.ConfigurableFileCollection;
 import org.gradle.api.file.FileCollection;
-import org.gradle.api.internal.plugins.DslObject;
 import org.gradle.api.internal.tasks.DefaultSourceSet;
 import org.gradle.api.model.ObjectFactory;
 import org.gradle.api.plugins.ExtensionAware;
@@ -31,15 +30,20 @@ import org.gradle.api.plugins.JavaPluginExtension;
 import org.gradle.api.plugins.internal.JvmPluginsHelper;
 import org.gradle.api.plugins.jvm.internal.JvmPluginServices;
 import org.gradle.api.provider.Provider;
+import org.gradle.api.provider.ProviderFactory;
 import org.gradle.api.tasks.SourceSet;
 import org.gradle.api.tasks.TaskProvider;
-import org.gradle.internal.deprecation.DeprecationLogger;
+import org.gradle.initialization.layout.ProjectCacheDir;
 import org.gradle.jvm.toolchain.JavaLauncher;
 import org.gradle.jvm.toolchain.JavaToolchainService;
 import org.symade.kiev.gradle.internal.tasks.DefaultKievSourceSet;
 import org.symade.kiev.gradle.api.tasks.KievRuntime;
 import org.symade.kiev.gradle.api.tasks.KievSourceDirectorySet;
 import org.symade.kiev.gradle.api.tasks.compile.KievCompile;
+import org.symade.kiev.gradle.api.tasks.compile.KievWatch;
+import org.symade.kiev.gradle.internal.tasks.compile.KievCompilerClassLoaderCache;
+import org.symade.kiev.gradle.internal.tasks.compile.KievCompileScheduler;
+import org.symade.kiev.gradle.internal.tasks.compile.KievCompilerDaemonPool;
 
 import javax.inject.Inject;
 
@@ -51,14 +55,24 @@ import static org.gradle.api.internal.lambdas.SerializableLambdas.spec;
 
 public abstract class KievBasePlugin implements Plugin<Project> {
     public static final String KIEV_RUNTIME_EXTENSION_NAME = "kievRuntime";
+    private static final int DEFAULT_MAX_CACHED_COMPILER_CLASS_LOADERS = 4;
+    private static final long DEFAULT_MAX_RETAINED_COMPILER_CLASSPATH_SIZE = 256L * 1024 * 1024;
+    private static final int DEFAULT_MAX_COMPILER_DAEMONS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static final int DEFAULT_MAX_COMPILATIONS_PER_DAEMON = 200;
+    private static final int DEFAULT_MAX_DAEMON_HEAP_USAGE_PERCENT = 85;
+    private static final long DEFAULT_DAEMON_IDLE_TIMEOUT_MILLIS = 10 * 60 * 1000L;
+    private static final int DEFAULT_DAEMON_HEAP_MARGIN_PERCENT = 30;
+    private static final String DEFAULT_MAX_AUTOMATIC_DAEMON_HEAP_SIZE = "4g";
 
     private final ObjectFactory objectFactory;
     private final JvmPluginServices jvmLanguageUtils;
+    private final ProjectCacheDir projectCacheDir;
 
     @Inject
-    public KievBasePlugin(ObjectFactory objectFactory, JvmPluginServices jvmPluginServices) {
+    public KievBasePlugin(ObjectFactory objectFactory, JvmPluginServices jvmPluginServices, ProjectCacheDir projectCacheDir) {
         this.objectFactory = objectFactory;
         this.jvmLanguageUtils = jvmPluginServices;
+        this.projectCacheDir = projectCacheDir;
     }
 
     @Override
@@ -67,16 +81,49 @@ public abstract class KievBasePlugin implements Plugin<Project> {
 
         KievRuntime kievRuntime = project.getExtensions().create(KIEV_RUNTIME_EXTENSION_NAME, KievRuntime.class, project);
 
-        configureCompileDefaults(project, kievRuntime);
+        Provider<KievCompilerClassLoaderCache> classLoaderCache = project.getGradle().getSharedServices().registerIfAbsent(
+            KievCompilerClassLoaderCache.SERVICE_NAME, KievCompilerClassLoaderCache.class, spec -> {
+                spec.getParameters().getMaxCachedClassLoaders().convention(DEFAULT_MAX_CACHED_COMPILER_CLASS_LOADERS);
+                spec.getParameters().getMaxRetainedClasspathSize().convention(DEFAULT_MAX_RETAINED_COMPILER_CLASSPATH_SIZE);
+            }
+        );
+
+        ProviderFactory providers = project.getProviders();
+        Provider<KievCompilerDaemonPool> daemonPool = project.getGradle().getSharedServices().registerIfAbsent(
+            KievCompilerDaemonPool.SERVICE_NAME, KievCompilerDaemonPool.class, spec -> {
+                spec.getParameters().getMaxDaemons().convention(providers.gradleProperty("kiev.compiler.daemons").map(Integer::valueOf).orElse(DEFAULT_MAX_COMPILER_DAEMONS));
+                spec.getParameters().getMaxCompilationsPerDaemon().convention(providers.gradleProperty("kiev.compiler.daemon.maxCompilations").map(Integer::valueOf).orElse(DEFAULT_MAX_COMPILATIONS_PER_DAEMON));
+                spec.getParameters().getMaxHeapUsagePercent().convention(providers.gradleProperty("kiev.compiler.daemon.maxHeapUsagePercent").map(Integer::valueOf).orElse(DEFAULT_MAX_DAEMON_HEAP_USAGE_PERCENT));
+                spec.getParameters().getDaemonHeapSize().convention(providers.gradleProperty("kiev.compiler.daemon.heapSize"));
+                spec.getParameters().getIdleTimeoutMillis().convention(providers.gradleProperty("kiev.compiler.daemon.idleTimeoutMillis").map(Long::valueOf).orElse(DEFAULT_DAEMON_IDLE_TIMEOUT_MILLIS));
+                spec.getParameters().getHeapHistoryFile().convention(project.getLayout().file(providers.provider(() -> new File(projectCacheDir.getDir(), "kiev/heap-history.txt"))));
+                spec.getParameters().getHeapMarginPercent().convention(providers.gradleProperty("kiev.compiler.daemon.heapMarginPercent").map(Integer::valueOf).orElse(DEFAULT_DAEMON_HEAP_MARGIN_PERCENT));
+                spec.getParameters().getMaxAutomaticHeapSize().convention(providers.gradleProperty("kiev.compiler.daemon.maxHeapSize").orElse(DEFAULT_MAX_AUTOMATIC_DAEMON_HEAP_SIZE));
+            }
+        );
+
+        Provider<KievCompileScheduler> scheduler = project.getGradle().getSharedServices().registerIfAbsent(
+            KievCompileScheduler.SERVICE_NAME, KievCompileScheduler.class, spec -> {
+                spec.getParameters().getHistoryFile().convention(project.getLayout().file(providers.provider(() -> new File(projectCacheDir.getDir(), "kiev/compile-history.txt"))));
+                spec.getMaxParallelUsages().set(providers.gradleProperty("kiev.compiler.maxParallelCompilations").map(Integer::valueOf));
+            }
+        );
+
+        configureCompileDefaults(project, kievRuntime, classLoaderCache, daemonPool, scheduler);
+        configureWatchDefaults(project, classLoaderCache);
         configureSourceSetDefaults(project);
     }
 
-    private void configureCompileDefaults(Project project, KievRuntime kievRuntime) {
+    private void configureCompileDefaults(Project project, KievRuntime kievRuntime, Provider<KievCompilerClassLoaderCache> classLoaderCache, Provider<KievCompilerDaemonPool> daemonPool, Provider<KievCompileScheduler> scheduler) {
         project.getTasks().withType(KievCompile.class).configureEach(compile -> {
-            compile.getConventionMapping().map(
-                "kievClasspath",
-                () -> kievRuntime.inferKievClasspath(compile.getClasspath())
-            );
+            compile.getCompilerClassLoaderCache().convention(classLoaderCache);
+            compile.usesService(classLoaderCache);
+            compile.getCompilerDaemonPool().convention(daemonPool);
+            compile.usesService(daemonPool);
+            compile.getCompileScheduler().convention(scheduler);
+            compile.usesService(scheduler);
+            // inferred lazily, since the classpath is configured after this action; setKievClasspath() replaces it
+            compile.getKievClasspath().from((Callable<FileCollection>) () -> kievRuntime.inferKievClasspath(compile.getClasspath()));
 
 //            DefaultJavaPluginExtension javaExtension = (DefaultJavaPluginExtension) project.getExtensions().getByType(JavaPluginExtension.class);
 //            JvmPluginsHelper.configureCompileDefaults(compile, javaExtension, (@Nullable JavaVersion rawConvention, Supplier<JavaVersion> javaVersionSupplier) -> {
@@ -88,6 +135,13 @@ public abstract class KievBasePlugin implements Plugin<Project> {
         });
     }
 
+    private void configureWatchDefaults(Project project, Provider<KievCompilerClassLoaderCache> classLoaderCache) {
+        project.getTasks().withType(KievWatch.class).configureEach(watch -> {
+            watch.getCompilerClassLoaderCache().convention(classLoaderCache);
+            watch.usesService(classLoaderCache);
+        });
+    }
+
     private void configureSourceSetDefaults(Project project) {
         javaPluginExtension(project).getSourceSets().all(sourceSet -> {
 
@@ -104,6 +158,7 @@ public abstract class KievBasePlugin implements Plugin<Project> {
             sourceSet.getAllSource().source(kievSource);
 
             TaskProvider<KievCompile> compileTask = createKievCompileTask(project, sourceSet, kievSource);
+            createKievWatchTask(project, sourceSet, kievSource, compileTask);
 
             ConfigurationContainer configurations = project.getConfigurations();
 //            configureLibraryElements(sourceSet, configurations, project.getObjects());
@@ -112,15 +167,11 @@ public abstract class KievBasePlugin implements Plugin<Project> {
     }
 
     /**
-     * In 9.0, once {@link org.gradle.api.internal.tasks.DefaultGroovySourceSet} is removed, we can update this to only construct the source directory
-     * set instead of the entire source set.
+     * The Kiev source is exposed as the 'kiev' extension of the source set only, the deprecated convention
+     * object is not registered since it prevents the use of the configuration cache.
      */
-    @SuppressWarnings("deprecation")
     private KievSourceDirectorySet getKievSourceDirectorySet(SourceSet sourceSet) {
         final DefaultKievSourceSet kievSourceSet = objectFactory.newInstance(DefaultKievSourceSet.class, "kiev", ((DefaultSourceSet) sourceSet).getDisplayName(), objectFactory);
-        DeprecationLogger.whileDisabled(() ->
-            new DslObject(sourceSet).getConvention().getPlugins().put("kiev", kievSourceSet)
-        );
         return kievSourceSet.getKiev();
     }
 
@@ -144,7 +195,7 @@ public abstract class KievBasePlugin implements Plugin<Project> {
             //JvmPluginsHelper.compileAgainstJavaOutputs(kievCompile, sourceSet, objectFactory);
             ConfigurableFileCollection classpath = objectFactory.fileCollection();
             classpath.from(sourceSet.getCompileClasspath());
-            kievCompile.getConventionMapping().map("classpath", () -> classpath);
+            kievCompile.setClasspath(classpath);
             //JvmPluginsHelper.configureAnnotationProcessorPath(sourceSet, kievSource, kievCompile.getOptions(), project);
             kievCompile.setDescription("Compiles the " + kievSource + ".");
             kievCompile.setSource(kievSource);
@@ -161,6 +212,18 @@ public abstract class KievBasePlugin implements Plugin<Project> {
         return compileTask;
     }
 
+    private void createKievWatchTask(Project project, SourceSet sourceSet, KievSourceDirectorySet kievSource, TaskProvider<KievCompile> compileTask) {
+        project.getTasks().register(sourceSet.getTaskName(null, "kievWatch"), KievWatch.class, watch -> {
+            watch.setDescription("Watches the " + kievSource + " and recompiles changed files.");
+            watch.getSourceDirectories().from(kievSource.getSourceDirectories());
+            watch.getDestinationDirectory().convention(compileTask.flatMap(KievCompile::getDestinationDirectory));
+            watch.getClasspath().from(compileTask.map(KievCompile::getClasspath));
+            watch.getKievClasspath().from(compileTask.map(KievCompile::getKievClasspath));
+            // the watched sources are compiled against the classes of the others, compile them all first
+            watch.dependsOn(compileTask);
+        });
+    }
+
     private static Provider<JavaLauncher> getJavaLauncher(Project project) {
         final JavaPluginExtension extension = javaPluginExtension(project);
         final JavaToolchainService service = extensionOf(project, JavaToolchainService.class);
@@ -28,8 +28,10 @@ import org.gradle.api.internal.tasks.TaskDependencyResolveContext;
 import org.gradle.api.logging.Logger;
 import org.gradle.api.logging.Logging;
 import org.gradle.api.plugins.jvm.internal.JvmPluginServices;
+import org.gradle.api.provider.Provider;
 import org.gradle.util.internal.VersionNumber;
 import org.symade.kiev.gradle.internal.plugins.KievJarFile;
+import org.symade.kiev.gradle.internal.plugins.KievJarFileResolver;
 import org.symade.kiev.gradle.api.plugins.KievPlugin;
 
 import javax.annotation.Nullable;
@@ -72,9 +74,13 @@ public abstract class KievRuntime {
     private static final List<String> KIEV_LIBS = Arrays.asList("symade");
 
     private final ProjectInternal project;
+    private final Provider<KievJarFileResolver> jarFileResolver;
 
     public KievRuntime(Project project) {
         this.project = (ProjectInternal)project;
+        this.jarFileResolver = project.getGradle().getSharedServices().registerIfAbsent(
+            KievJarFileResolver.SERVICE_NAME, KievJarFileResolver.class, spec -> {}
+        );
     }
 
     /**
@@ -107,7 +113,7 @@ public abstract class KievRuntime {
             }
 
             private FileCollection inferKievClasspath() {
-                KievJarFile kievJar = findKievJarFile(classpath);
+                KievJarFile kievJar = jarFileResolver.get().resolve(classpath);
                 if (kievJar == null) {
                     throw new GradleException(
                         String.format(
@@ -117,6 +123,7 @@ public abstract class KievRuntime {
                     );
                 }
 
+                LOGGER.info("Inferred Kiev runtime '{}' version: {}", kievJar.getFile(), kievJar.getVersion());
                 //if (kievJar.isKievAll()) {
                     return project.getLayout().files(kievJar.getFile());
                 //}
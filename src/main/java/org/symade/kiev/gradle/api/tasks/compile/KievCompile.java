@@ -16,37 +16,63 @@
 
 package org.symade.kiev.gradle.api.tasks.compile;
 
+import org.gradle.api.BuildCancelledException;
 import org.gradle.api.InvalidUserDataException;
 import org.gradle.api.JavaVersion;
+import org.gradle.api.file.ConfigurableFileCollection;
 import org.gradle.api.file.FileCollection;
 import org.gradle.api.file.FileTree;
+import org.gradle.api.file.FileType;
 import org.gradle.api.file.ProjectLayout;
+import org.gradle.api.internal.ClassPathRegistry;
 import org.gradle.api.internal.file.FileTreeInternal;
 import org.gradle.api.internal.file.temp.TemporaryFileProvider;
 import org.gradle.api.internal.tasks.compile.*;
+import org.gradle.api.internal.tasks.compile.processing.AnnotationProcessorDetector;
 import org.gradle.api.logging.Logger;
 import org.gradle.api.logging.Logging;
 import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.problems.ProblemGroup;
+import org.gradle.api.problems.ProblemId;
+import org.gradle.api.problems.Problems;
+import org.gradle.api.problems.Severity;
 import org.gradle.api.provider.Property;
 import org.gradle.api.tasks.*;
 import org.gradle.api.tasks.compile.AbstractCompile;
 import org.gradle.api.tasks.compile.CompileOptions;
+import org.gradle.api.tasks.util.PatternFilterable;
+import org.gradle.initialization.BuildCancellationToken;
+import org.gradle.initialization.ClassLoaderRegistry;
+import org.gradle.initialization.GradleUserHomeDirProvider;
+import org.gradle.initialization.layout.ProjectCacheDir;
 import org.gradle.internal.buildoption.FeatureFlags;
 import org.gradle.internal.file.Deleter;
+import org.gradle.internal.jvm.inspection.JvmVersionDetector;
+import org.gradle.internal.operations.BuildOperationProgressEventEmitter;
 //import org.gradle.internal.instrumentation.api.annotations.ToBeReplacedByLazyProperty;
 import org.gradle.jvm.toolchain.JavaInstallationMetadata;
 import org.gradle.jvm.toolchain.JavaLauncher;
 import org.gradle.jvm.toolchain.JavaToolchainService;
 import org.gradle.language.base.internal.compile.Compiler;
+import org.gradle.process.internal.JavaForkOptionsFactory;
+import org.gradle.process.internal.worker.child.WorkerDirectoryProvider;
+import org.gradle.work.ChangeType;
+import org.gradle.work.FileChange;
 import org.gradle.work.Incremental;
 import org.gradle.work.InputChanges;
+import org.gradle.workers.internal.ActionExecutionSpecFactory;
+import org.gradle.workers.internal.IsolatedClassloaderWorkerFactory;
+import org.gradle.workers.internal.WorkerDaemonFactory;
 import org.symade.kiev.gradle.api.plugins.KievPlugin;
 import org.symade.kiev.gradle.internal.tasks.compile.*;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
 import java.util.concurrent.Callable;
 
 /**
@@ -55,19 +81,27 @@ import java.util.concurrent.Callable;
 @CacheableTask
 public abstract class KievCompile extends AbstractCompile implements HasCompileOptions {
     private static final Logger LOGGER = Logging.getLogger(KievPlugin.class);
-    private FileCollection kievClasspath;
+    private static final ProblemGroup KIEV_COMPILATION_PROBLEMS = ProblemGroup.create("kiev-compilation", "Kiev compilation");
+    private final ConfigurableFileCollection kievClasspath;
     private final CompileOptions compileOptions;
-    private final KievCompileOptions kievCompileOptions = getProject().getObjects().newInstance(KievCompileOptions.class);
-    private final FileCollection stableSources = getProject().files((Callable<FileTree>) this::getSource);
+    private final KievCompileOptions kievCompileOptions;
+    private final FileCollection stableSources;
     private final Property<JavaLauncher> javaLauncher;
     private File previousCompilationDataFile;
+    private File previousClassDependenciesFile;
+    private File previousClasspathSnapshotFile;
+    private File previousOutputIndexFile;
 
     public KievCompile() {
         ObjectFactory objectFactory = getObjectFactory();
         CompileOptions compileOptions = objectFactory.newInstance(CompileOptions.class);
+        // incremental Kiev compilation is opt-in, see IncrementalKievCompiler
         compileOptions.setIncremental(false);
         compileOptions.getIncrementalAfterFailure().convention(true);
         this.compileOptions = compileOptions;
+        this.kievCompileOptions = objectFactory.newInstance(KievCompileOptions.class);
+        this.kievClasspath = objectFactory.fileCollection();
+        this.stableSources = objectFactory.fileCollection().from((Callable<FileTree>) () -> getSource().matching(this::includeKievSourceFiles));
 
         JavaToolchainService javaToolchainService = getJavaToolchainService();
         this.javaLauncher = objectFactory.property(JavaLauncher.class).convention(javaToolchainService.launcherFor(it -> {}));
@@ -88,8 +122,99 @@ public abstract class KievCompile extends AbstractCompile implements HasCompileO
         checkKievClasspathIsNonEmpty();
         KievJavaJointCompileSpec spec = createSpec();
         maybeDisableIncrementalCompilationAfterFailure(spec);
-        WorkResult result = createCompiler(spec, inputChanges).execute(spec);
+        WorkResult result;
+        KievCompileScheduler scheduler = getCompileScheduler().getOrNull();
+        try (KievCompileScheduler.Compilation compilation = scheduler == null ? null
+            : scheduler.start(getPath(), spec.getDestinationDir(), spec.getCompileClasspath())) {
+            result = createCompiler(spec, inputChanges).execute(spec);
+            if (compilation != null) {
+                compilation.succeeded();
+            }
+        } catch (CompilationFailedException e) {
+            e.getCompilerPartialResult().ifPresent(this::reportDiagnostics);
+            throw e;
+        } catch (BuildCancelledException e) {
+            deleteCancelledCompilationDirs(spec);
+            throw e;
+        }
+        reportDiagnostics(result);
         setDidWork(result.getDidWork());
+        KievCompileMetrics metrics = KievCompileResult.metricsOf(result);
+        if (metrics != null) {
+            reportMetrics(metrics);
+        }
+    }
+
+    /**
+     * Reports the diagnostics of compilers which pass them to the plugin to Gradle's problems API.
+     * The diagnostics were already logged during the compilation.
+     */
+    private void reportDiagnostics(WorkResult result) {
+        if (!(result instanceof KievCompileResult)) {
+            return;
+        }
+        for (KievDiagnostic diagnostic : ((KievCompileResult) result).getDiagnostics()) {
+            Severity severity;
+            switch (diagnostic.getKind()) {
+                case ERROR:
+                    severity = Severity.ERROR;
+                    break;
+                case WARNING:
+                    severity = Severity.WARNING;
+                    break;
+                default:
+                    severity = Severity.ADVICE;
+            }
+            ProblemId id = ProblemId.create("kiev-compiler-" + diagnostic.getKind().name().toLowerCase(Locale.ROOT),
+                "Kiev compiler " + diagnostic.getKind().name().toLowerCase(Locale.ROOT), KIEV_COMPILATION_PROBLEMS);
+            getProblems().getReporter().report(id, problem -> {
+                problem.contextualLabel(diagnostic.getMessage()).severity(severity);
+                if (diagnostic.getFile() != null) {
+                    if (diagnostic.getLine() > 0 && diagnostic.getColumn() > 0) {
+                        problem.lineInFileLocation(diagnostic.getFile(), diagnostic.getLine(), diagnostic.getColumn());
+                    } else if (diagnostic.getLine() > 0) {
+                        problem.lineInFileLocation(diagnostic.getFile(), diagnostic.getLine());
+                    } else {
+                        problem.fileLocation(diagnostic.getFile());
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Deletes the staging, stub and partition directories of a cancelled compilation, which are not reused.
+     * The data of the previous compilation in the temporary directory is kept for the next one.
+     */
+    private void deleteCancelledCompilationDirs(KievJavaJointCompileSpec spec) {
+        List<File> dirs = new ArrayList<>();
+        dirs.add(getStagingDir());
+        File stubDir = kievCompileOptions.getStubDir();
+        dirs.add(stubDir != null ? stubDir : new File(spec.getTempDir(), "stubs"));
+        File[] partitionDirs = spec.getTempDir().listFiles((dir, name) -> name.startsWith("partition-"));
+        if (partitionDirs != null) {
+            dirs.addAll(Arrays.asList(partitionDirs));
+        }
+        for (File dir : dirs) {
+            try {
+                getDeleter().deleteRecursively(dir);
+            } catch (IOException ignored) {
+                LOGGER.debug("Cannot delete {} after cancelling the compilation", dir);
+            }
+        }
+    }
+
+    private void reportMetrics(KievCompileMetrics metrics) {
+        File report = getProjectLayout().getBuildDirectory().file("reports/kiev/" + getName() + "-metrics.json").get().getAsFile();
+        report.getParentFile().mkdirs();
+        try {
+            Files.write(report.toPath(), metrics.toJson().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            LOGGER.warn("Cannot write Kiev compile metrics to {}", report, e);
+        }
+        if (kievCompileOptions.isMetricsEvents()) {
+            getBuildOperationProgressEventEmitter().emitNowForCurrent(metrics);
+        }
     }
 
     private void maybeDisableIncrementalCompilationAfterFailure(KievJavaJointCompileSpec spec) {
@@ -111,13 +236,86 @@ public abstract class KievCompile extends AbstractCompile implements HasCompileO
         return previousCompilationDataFile;
     }
 
+    /**
+     * The analysis of the classes produced by the previous compilation. Internal use only.
+     */
+    @OutputFile
+    protected File getPreviousClassDependencies() {
+        if (previousClassDependenciesFile == null) {
+            previousClassDependenciesFile = new File(getTemporaryDirWithoutCreating(), "previous-class-dependencies.bin");
+        }
+        return previousClassDependenciesFile;
+    }
+
+    /**
+     * The snapshot of the compile classpath used by the previous compilation. Internal use only.
+     */
+    @OutputFile
+    protected File getPreviousClasspathSnapshot() {
+        if (previousClasspathSnapshotFile == null) {
+            previousClasspathSnapshotFile = new File(getTemporaryDirWithoutCreating(), "previous-classpath-snapshot.bin");
+        }
+        return previousClasspathSnapshotFile;
+    }
+
+    /**
+     * The content hashes of the classes written by the previous full compilation. Internal use only.
+     */
+    @OutputFile
+    protected File getPreviousOutputIndex() {
+        if (previousOutputIndexFile == null) {
+            previousOutputIndexFile = new File(getTemporaryDirWithoutCreating(), "previous-output-index.txt");
+        }
+        return previousOutputIndexFile;
+    }
+
+    private File getStagingDir() {
+        return new File(getTemporaryDir(), "staging");
+    }
+
     private Compiler<KievJavaJointCompileSpec> createCompiler(KievJavaJointCompileSpec spec, InputChanges inputChanges) {
 
-        //KievCompilerFactory kievCompilerFactory = getKievCompilerFactory();
-        //Compiler<KievJavaJointCompileSpec> delegatingCompiler = kievCompilerFactory.newCompiler(spec);
-        Compiler<KievJavaJointCompileSpec> delegatingCompiler = new InProcessKievCompiler();
-        CleaningJavaCompiler<KievJavaJointCompileSpec> cleaningKievCompiler = new CleaningJavaCompiler<>(delegatingCompiler, getOutputs(), getDeleter());
-        return cleaningKievCompiler;
+        KievCompilerFactory kievCompilerFactory = getKievCompilerFactory();
+        Compiler<KievJavaJointCompileSpec> delegatingCompiler = kievCompilerFactory.newCompiler(spec);
+        if (kievCompileOptions.isPruneClasspath()) {
+            delegatingCompiler = new PruningKievCompiler(delegatingCompiler, new File(getTemporaryDir(), "classpath-usage.txt"));
+        }
+        // full compilations go through a staging directory, so unchanged class files are not written again
+        StagingKievCompiler stagingKievCompiler = new StagingKievCompiler(delegatingCompiler,
+            getStagingDir(), getPreviousOutputIndex());
+        if (!getOptions().isIncremental()) {
+            return stagingKievCompiler;
+        }
+
+        Map<String, File> modifiedSources = new HashMap<>();
+        Set<String> removedSources = new HashSet<>();
+        String fullRebuildCause = getFullRebuildCause(inputChanges);
+        if (fullRebuildCause == null) {
+            for (FileChange change : inputChanges.getFileChanges(getStableSources())) {
+                if (change.getFileType() != FileType.FILE) {
+                    continue;
+                }
+                if (change.getChangeType() == ChangeType.REMOVED) {
+                    removedSources.add(change.getNormalizedPath());
+                } else {
+                    modifiedSources.put(change.getNormalizedPath(), change.getFile());
+                }
+            }
+        }
+        return new IncrementalKievCompiler(delegatingCompiler, stagingKievCompiler, getPreviousCompilationData(), getPreviousClassDependencies(), getPreviousClasspathSnapshot(),
+            new KievClasspathSnapshotter(new File(getProjectCacheDir().getDir(), "kiev/classpath-snapshots")),
+            fullRebuildCause == null && inputChanges.getFileChanges(getClasspath()).iterator().hasNext(), fullRebuildCause, modifiedSources, removedSources);
+    }
+
+    @Nullable
+    private String getFullRebuildCause(InputChanges inputChanges) {
+        if (!inputChanges.isIncremental()) {
+            return "the task was not executed incrementally";
+        }
+        if (inputChanges.getFileChanges(getKievClasspath()).iterator().hasNext()) {
+            return "the Kiev classpath has changed";
+        }
+        return null;
     }
 
     /**
@@ -134,6 +332,16 @@ public abstract class KievCompile extends AbstractCompile implements HasCompileO
         return stableSources;
     }
 
+    /**
+     * Only files with one of the {@link KievCompileOptions#getFileExtensions() Kiev file extensions} are
+     * inputs of the compilation, so editing other files in the source directories does not recompile.
+     */
+    private void includeKievSourceFiles(PatternFilterable patterns) {
+        for (String extension : kievCompileOptions.getFileExtensions()) {
+            patterns.include("**/*." + extension);
+        }
+    }
+
     private FileCollection determineKievCompileClasspath() {
         return getClasspath();
     }
@@ -169,8 +377,9 @@ public abstract class KievCompile extends AbstractCompile implements HasCompileO
         spec.setTempDir(getTemporaryDir());
         spec.setCompileClasspath(copyOf(determineKievCompileClasspath()));
         configureCompatibilityOptions(spec);
-        //spec.setAnnotationProcessorPath(Lists.newArrayList(compileOptions.getAnnotationProcessorPath() == null ? getProjectLayout().files() : compileOptions.getAnnotationProcessorPath()));
+        spec.setAnnotationProcessorPath(compileOptions.getAnnotationProcessorPath() == null ? new ArrayList<>() : copyOf(compileOptions.getAnnotationProcessorPath()));
         spec.setKievClasspath(copyOf(getKievClasspath()));
+        spec.setClasspathIndexDir(new File(getGradleUserHomeDirProvider().getGradleUserHomeDirectory(), "caches/kiev/classpath-index"));
         LOGGER.info("createSpec(): kievClasspath="+spec.getKievClasspath());
         spec.setCompileOptions(compileOptions);
         spec.setKievCompileOptions(new MinimalKievCompileOptions(kievCompileOptions));
@@ -183,6 +392,17 @@ public abstract class KievCompile extends AbstractCompile implements HasCompileO
         String executable = getJavaLauncher().get().getExecutablePath().getAsFile().getAbsolutePath();
         spec.getCompileOptions().getForkOptions().setExecutable(executable);
 
+        MinimalKievCompilerDaemonForkOptions forkOptions = spec.getKievCompileOptions().getForkOptions();
+        if (kievCompileOptions.isFork() && forkOptions.isClassDataSharing()) {
+            List<String> jvmArgs = new ArrayList<>();
+            if (forkOptions.getJvmArgs() != null) {
+                jvmArgs.addAll(forkOptions.getJvmArgs());
+            }
+            jvmArgs.addAll(KievCompilerCdsArchive.jvmArgs(new File(getGradleUserHomeDirProvider().getGradleUserHomeDirectory(), "caches/kiev/cds"),
+                spec.getKievClasspath(), getToolchain().getLanguageVersion().asInt(), getToolchain().getJavaRuntimeVersion()));
+            forkOptions.setJvmArgs(jvmArgs);
+        }
+
         return spec;
     }
 
@@ -264,17 +484,18 @@ public abstract class KievCompile extends AbstractCompile implements HasCompileO
      */
     @Incremental
     @Classpath
-    public FileCollection getKievClasspath() {
+    public ConfigurableFileCollection getKievClasspath() {
         return kievClasspath;
     }
 
     /**
-     * Sets the classpath containing the version of Kiev to use for compilation.
+     * Sets the classpath containing the version of Kiev to use for compilation, replacing the classpath
+     * inferred by the 'kiev-base' plugin.
      *
      * @param kievClasspath The classpath. Must not be null.
      */
     public void setKievClasspath(FileCollection kievClasspath) {
-        this.kievClasspath = kievClasspath;
+        this.kievClasspath.setFrom(kievClasspath);
     }
 
     /**
@@ -288,26 +509,98 @@ public abstract class KievCompile extends AbstractCompile implements HasCompileO
         return javaLauncher;
     }
 
+    /**
+     * The shared cache of Kiev compiler class loaders, reused between compilations in the same build.
+     */
+    @Internal
+    public abstract Property<KievCompilerClassLoaderCache> getCompilerClassLoaderCache();
+
+    /**
+     * The shared pool of Kiev compiler daemons, used by forked compilations.
+     */
+    @Internal
+    public abstract Property<KievCompilerDaemonPool> getCompilerDaemonPool();
+
+    /**
+     * The shared service which keeps the history of the Kiev compilations and limits how many of them run in parallel.
+     */
+    @Internal
+    public abstract Property<KievCompileScheduler> getCompileScheduler();
+
     @Inject
     protected abstract Deleter getDeleter();
 
+    @Inject
+    protected abstract Problems getProblems();
+
+    @Inject
+    protected abstract BuildCancellationToken getBuildCancellationToken();
+
     @Inject
     protected abstract ProjectLayout getProjectLayout();
 
     @Inject
     protected abstract ObjectFactory getObjectFactory();
 
+    private KievCompilerFactory getKievCompilerFactory() {
+        KievCompilerClassLoaderCache classLoaderCache = getCompilerClassLoaderCache().getOrNull();
+        return new KievCompilerFactory(
+            getWorkerDaemonFactory(), getIsolatedClassloaderWorkerFactory(), getJavaForkOptionsFactory(),
+            getAnnotationProcessorDetector(), getJvmVersionDetector(), getWorkerDirectoryProvider(),
+            getClassPathRegistry(), getClassLoaderRegistry(), getActionExecutionSpecFactory(), getProjectCacheDir(),
+            classLoaderCache == null ? null : classLoaderCache.getPool(),
+            kievCompileOptions.isFork() ? getCompilerDaemonPool().getOrNull() : null,
+            getBuildCancellationToken()
+        );
+    }
+
+    @Inject
+    protected abstract WorkerDaemonFactory getWorkerDaemonFactory();
+
+    @Inject
+    protected abstract IsolatedClassloaderWorkerFactory getIsolatedClassloaderWorkerFactory();
+
+    @Inject
+    protected abstract JavaForkOptionsFactory getJavaForkOptionsFactory();
+
+    @Inject
+    protected abstract AnnotationProcessorDetector getAnnotationProcessorDetector();
+
+    @Inject
+    protected abstract JvmVersionDetector getJvmVersionDetector();
+
     @Inject
-    protected abstract KievCompilerFactory getKievCompilerFactory();
+    protected abstract WorkerDirectoryProvider getWorkerDirectoryProvider();
+
+    @Inject
+    protected abstract ClassPathRegistry getClassPathRegistry();
+
+    @Inject
+    protected abstract ClassLoaderRegistry getClassLoaderRegistry();
+
+    @Inject
+    protected abstract ActionExecutionSpecFactory getActionExecutionSpecFactory();
+
+    @Inject
+    protected abstract ProjectCacheDir getProjectCacheDir();
 
     @Inject
     protected abstract FeatureFlags getFeatureFlags();
 
+    @Inject
+    protected abstract BuildOperationProgressEventEmitter getBuildOperationProgressEventEmitter();
+
     @Inject
     protected abstract JavaToolchainService getJavaToolchainService();
 
+    @Inject
+    protected abstract TemporaryFileProvider getTemporaryFileProvider();
+
+    @Inject
+    protected abstract GradleUserHomeDirProvider getGradleUserHomeDirProvider();
+
     private File getTemporaryDirWithoutCreating() {
         // Do not create the temporary folder, since that causes problems.
-        return getServices().get(TemporaryFileProvider.class).newTemporaryFile(getName());
+        return getTemporaryFileProvider().newTemporaryFile(getName());
     }
 }
@@ -15,6 +15,7 @@
  */
 package org.symade.kiev.gradle.api.tasks.compile;
 
+import org.gradle.api.Action;
 import org.gradle.api.model.ObjectFactory;
 import org.gradle.api.provider.SetProperty;
 import org.gradle.api.tasks.Console;
@@ -41,13 +42,27 @@ public abstract class KievCompileOptions extends AbstractOptions {
 
     private boolean failOnError = true;
 
+    private boolean fork;
+
+    private final KievForkOptions forkOptions = getObjectFactory().newInstance(KievForkOptions.class);
+
+    private int maxParallelPartitions = 1;
+
     private boolean verbose;
 
     private boolean listFiles;
 
+    private boolean metricsEvents;
+
+    private boolean jointCompilation;
+
+    private int maxErrors = 100;
+
+    private boolean pruneClasspath;
+
     private String encoding = "UTF-8";
 
-    private List<String> fileExtensions = Arrays.asList("java", "kiev");
+    private List<String> fileExtensions = Arrays.asList("java", "kj", "xml");
 
     private Map<String, Boolean> optimizationOptions = new HashMap<>();
 
@@ -77,6 +92,61 @@ public abstract class KievCompileOptions extends AbstractOptions {
         this.failOnError = failOnError;
     }
 
+    /**
+     * Tells whether to run the Kiev compiler in a separate process. Defaults to {@code false}.
+     *
+     * <p>The forked compiler runs in a long-lived worker daemon, which is reused by all compilations with compatible
+     * {@link #getForkOptions() fork options}, also across builds.
+     */
+    @Input
+    public boolean isFork() {
+        return fork;
+    }
+
+    /**
+     * Sets whether to run the Kiev compiler in a separate process. Defaults to {@code false}.
+     */
+    public void setFork(boolean fork) {
+        this.fork = fork;
+    }
+
+    /**
+     * Returns options for running the Kiev compiler in a separate process. These options only take effect
+     * if {@code fork} is set to {@code true}.
+     */
+    @Nested
+    public KievForkOptions getForkOptions() {
+        return forkOptions;
+    }
+
+    /**
+     * Execute the given action against {@link #getForkOptions()}.
+     */
+    public void forkOptions(Action<? super KievForkOptions> action) {
+        action.execute(forkOptions);
+    }
+
+    /**
+     * Returns the maximum number of Kiev compilers compiling independent partitions of the sources concurrently.
+     * Defaults to {@code 1}, which compiles all sources in one compiler run.
+     *
+     * <p>Sources are partitioned by package: packages which do not depend on each other, directly or
+     * transitively, are compiled concurrently, each by its own compiler instance. Sources are not partitioned
+     * with {@link #isJointCompilation() joint compilation}.
+     */
+    @Internal
+    public int getMaxParallelPartitions() {
+        return maxParallelPartitions;
+    }
+
+    /**
+     * Sets the maximum number of Kiev compilers compiling independent partitions of the sources concurrently.
+     * Defaults to {@code 1}, which compiles all sources in one compiler run.
+     */
+    public void setMaxParallelPartitions(int maxParallelPartitions) {
+        this.maxParallelPartitions = maxParallelPartitions;
+    }
+
     /**
      * Tells whether to turn on verbose output. Defaults to {@code false}.
      */
@@ -107,6 +177,79 @@ public abstract class KievCompileOptions extends AbstractOptions {
         this.listFiles = listFiles;
     }
 
+    /**
+     * Tells whether to publish the compile metrics as build operation progress events, in addition to the
+     * {@code build/reports/kiev/<task>-metrics.json} report. Defaults to {@code false}.
+     */
+    @Console
+    public boolean isMetricsEvents() {
+        return metricsEvents;
+    }
+
+    /**
+     * Sets whether to publish the compile metrics as build operation progress events. Defaults to {@code false}.
+     */
+    public void setMetricsEvents(boolean metricsEvents) {
+        this.metricsEvents = metricsEvents;
+    }
+
+    /**
+     * Tells whether the {@code .java} sources among the Kiev sources are compiled by the Java compiler, against
+     * Java stubs generated for the Kiev sources. Defaults to {@code false}, in which case the Kiev compiler
+     * compiles all sources.
+     *
+     * <p>The stubs are written into the {@link #getStubDir() stub directory} and only the stubs the Java sources
+     * need are compiled. Requires a Kiev compiler which can generate stubs, otherwise all sources are compiled
+     * by the Kiev compiler.
+     */
+    @Input
+    public boolean isJointCompilation() {
+        return jointCompilation;
+    }
+
+    /**
+     * Sets whether the {@code .java} sources among the Kiev sources are compiled by the Java compiler, against
+     * Java stubs generated for the Kiev sources. Defaults to {@code false}.
+     */
+    public void setJointCompilation(boolean jointCompilation) {
+        this.jointCompilation = jointCompilation;
+    }
+
+    /**
+     * Returns the number of errors after which the compilation is stopped. Zero never stops it. Defaults to {@code 100}.
+     *
+     * <p>Only takes effect with Kiev compilers which report their diagnostics to the plugin. Errors and warnings of such
+     * compilers are logged as they are found and reported to Gradle's problems API when the compilation ends.
+     */
+    @Internal
+    public int getMaxErrors() {
+        return maxErrors;
+    }
+
+    /**
+     * Sets the number of errors after which the compilation is stopped. Zero never stops it. Defaults to {@code 100}.
+     */
+    public void setMaxErrors(int maxErrors) {
+        this.maxErrors = maxErrors;
+    }
+
+    /**
+     * Tells whether to leave the classpath jars the previous compilation did not use off the compile classpath, as long
+     * as the jars on the classpath do not change. A compilation which fails against the pruned classpath is run again
+     * with the full classpath. Defaults to {@code false}.
+     */
+    @Internal
+    public boolean isPruneClasspath() {
+        return pruneClasspath;
+    }
+
+    /**
+     * Sets whether to leave the classpath jars the previous compilation did not use off the compile classpath.
+     */
+    public void setPruneClasspath(boolean pruneClasspath) {
+        this.pruneClasspath = pruneClasspath;
+    }
+
     /**
      * Tells the source encoding. Defaults to {@code UTF-8}.
      */
@@ -200,8 +343,8 @@ public abstract class KievCompileOptions extends AbstractOptions {
     }
 
     /**
-     * Returns the list of acceptable source file extensions. Only takes effect when compiling against
-     * Kiev 1.7 or higher. Defaults to {@code ImmutableList.of("java", "kiev")}.
+     * Returns the list of acceptable source file extensions. Other files in the source directories are neither
+     * compiled nor inputs of the compile task. Defaults to {@code ["java", "kj", "xml"]}.
      */
     @Input
     public List<String> getFileExtensions() {
@@ -209,8 +352,7 @@ public abstract class KievCompileOptions extends AbstractOptions {
     }
 
     /**
-     * Sets the list of acceptable source file extensions. Only takes effect when compiling against
-     * Kiev 1.7 or higher. Defaults to {@code ImmutableList.of("java", "Kiev")}.
+     * Sets the list of acceptable source file extensions. Defaults to {@code ["java", "kj", "xml"]}.
      */
     public void setFileExtensions(List<String> fileExtensions) {
         this.fileExtensions = fileExtensions;
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.api.tasks.compile;
+
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.compile.ProviderAwareCompilerDaemonForkOptions;
+
+/**
+ * Fork options for Kiev compilation. Only take effect if {@code KievCompileOptions.fork}
+ * is {@code true}.
+ */
+public class KievForkOptions extends ProviderAwareCompilerDaemonForkOptions {
+    private static final long serialVersionUID = 0;
+
+    private boolean classDataSharing = true;
+
+    /**
+     * Tells whether the compiler daemons share the classes of the Kiev compiler through an AppCDS archive, which is
+     * created by the first daemon for a Kiev compiler and JDK, and kept in the Gradle user home. Requires JDK 13 or
+     * later, and is ignored on earlier JDKs. Defaults to {@code true}.
+     */
+    @Internal
+    public boolean isClassDataSharing() {
+        return classDataSharing;
+    }
+
+    /**
+     * Sets whether the compiler daemons share the classes of the Kiev compiler through an AppCDS archive.
+     */
+    public void setClassDataSharing(boolean classDataSharing) {
+        this.classDataSharing = classDataSharing;
+    }
+}
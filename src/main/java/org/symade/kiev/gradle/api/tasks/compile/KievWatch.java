@@ -0,0 +1,322 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.api.tasks.compile;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.ProjectLayout;
+import org.gradle.api.internal.tasks.compile.ApiCompilerResult;
+import org.gradle.api.internal.tasks.compile.CompilationFailedException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Nested;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.UntrackedTask;
+import org.gradle.api.tasks.WorkResult;
+import org.gradle.api.tasks.compile.CompileOptions;
+import org.gradle.initialization.BuildCancellationToken;
+import org.gradle.initialization.GradleUserHomeDirProvider;
+import org.symade.kiev.gradle.api.plugins.KievPlugin;
+import org.symade.kiev.gradle.internal.tasks.compile.*;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Watches the Kiev source directories and recompiles the changed source files as soon as they are saved, until the build
+ * is cancelled. The Kiev compiler runs in the build process and stays loaded between compilations, so a recompilation
+ * costs neither a Gradle invocation nor the start of the compiler.
+ *
+ * <p>Changes are collected until no file changed for {@link #getDebounceMillis() debounce} milliseconds, so saving many
+ * files at once triggers a single compilation. Only the changed files are compiled, against the classes in the
+ * destination directory. The classes of a deleted source file are deleted: those the compiler reported for it, or for
+ * sources not compiled since the watch started, the classes of its package whose {@code SourceFile} attribute names it.
+ *
+ * <p>The destination directory is the output of the compile task of the source set, so after watching, that task is out of
+ * date and compiles all sources again in the next build, replacing the classes compiled here.
+ */
+@UntrackedTask(because = "Watches the sources until the build is cancelled")
+public abstract class KievWatch extends DefaultTask {
+    private static final Logger LOGGER = Logging.getLogger(KievPlugin.class);
+
+    private final CompileOptions compileOptions;
+    private final KievCompileOptions kievCompileOptions;
+    private final Map<String, Set<String>> sourceClassesMapping = new HashMap<>();
+
+    public KievWatch() {
+        ObjectFactory objectFactory = getObjectFactory();
+        this.compileOptions = objectFactory.newInstance(CompileOptions.class);
+        this.kievCompileOptions = objectFactory.newInstance(KievCompileOptions.class);
+        getDebounceMillis().convention(200L);
+    }
+
+    /**
+     * The directories of the Kiev sources to watch.
+     */
+    @Internal
+    public abstract ConfigurableFileCollection getSourceDirectories();
+
+    /**
+     * The directory the changed sources are compiled into.
+     */
+    @Internal
+    public abstract DirectoryProperty getDestinationDirectory();
+
+    /**
+     * The compile classpath of the sources.
+     */
+    @Internal
+    public abstract ConfigurableFileCollection getClasspath();
+
+    /**
+     * The classpath containing the version of Kiev to use for compilation.
+     */
+    @Internal
+    public abstract ConfigurableFileCollection getKievClasspath();
+
+    /**
+     * The time, in milliseconds, without any change after which the changed sources are compiled. Defaults to {@code 200}.
+     */
+    @Internal
+    public abstract Property<Long> getDebounceMillis();
+
+    /**
+     * The shared cache of Kiev compiler class loaders, which keeps the compiler loaded between compilations.
+     */
+    @Internal
+    public abstract Property<KievCompilerClassLoaderCache> getCompilerClassLoaderCache();
+
+    /**
+     * The options for the Kiev compilation. Only the options of in-process compilations apply.
+     */
+    @Nested
+    public KievCompileOptions getKievOptions() {
+        return kievCompileOptions;
+    }
+
+    /**
+     * The options for Java compilation.
+     */
+    @Nested
+    public CompileOptions getOptions() {
+        return compileOptions;
+    }
+
+    @Inject
+    protected abstract ObjectFactory getObjectFactory();
+
+    @Inject
+    protected abstract ProjectLayout getProjectLayout();
+
+    @Inject
+    protected abstract BuildCancellationToken getBuildCancellationToken();
+
+    @Inject
+    protected abstract GradleUserHomeDirProvider getGradleUserHomeDirProvider();
+
+    @TaskAction
+    protected void watch() throws IOException {
+        BuildCancellationToken cancellationToken = getBuildCancellationToken();
+        KievCompilerClassLoaderCache classLoaderCache = getCompilerClassLoaderCache().getOrNull();
+        InProcessKievCompiler compiler = new InProcessKievCompiler(classLoaderCache == null ? null : classLoaderCache.getPool(), cancellationToken);
+        List<File> sourceRoots = getSourceDirectories().getFiles().stream().filter(File::isDirectory).collect(Collectors.toList());
+        long debounceMillis = Math.max(0, getDebounceMillis().get());
+
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            Map<WatchKey, Path> watchedDirs = new HashMap<>();
+            for (File root : sourceRoots) {
+                register(watchService, root.toPath(), watchedDirs);
+            }
+            LOGGER.lifecycle("Watching {} for changes to Kiev sources, cancel the build to stop", sourceRoots);
+
+            while (!cancellationToken.isCancellationRequested()) {
+                WatchKey key = watchService.poll(500, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    continue;
+                }
+                Set<File> changed = new LinkedHashSet<>();
+                Set<File> deleted = new LinkedHashSet<>();
+                boolean overflow = false;
+                do {
+                    overflow |= collectChanges(watchService, key, watchedDirs, changed, deleted);
+                    key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS);
+                } while (key != null);
+
+                if (overflow) {
+                    LOGGER.lifecycle("Too many changes to track, recompiling all Kiev sources");
+                    for (File root : sourceRoots) {
+                        changed.addAll(listFiles(root.toPath()));
+                    }
+                }
+                changed.removeIf(f -> !isKievSource(f) || !f.isFile());
+                deleted.removeIf(f -> !isKievSource(f));
+                if (!changed.isEmpty() || !deleted.isEmpty()) {
+                    recompile(compiler, sourceRoots, changed, deleted);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Collects the changes of one watched directory, and watches the directories created in it.
+     *
+     * @return whether changes were lost
+     */
+    private boolean collectChanges(WatchService watchService, WatchKey key, Map<WatchKey, Path> watchedDirs, Set<File> changed, Set<File> deleted) throws IOException {
+        boolean overflow = false;
+        Path dir = watchedDirs.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                overflow = true;
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                deleted.add(path.toFile());
+                changed.remove(path.toFile());
+            } else if (Files.isDirectory(path)) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    // the files may have been created before the directory was watched
+                    register(watchService, path, watchedDirs);
+                    changed.addAll(listFiles(path));
+                }
+            } else {
+                changed.add(path.toFile());
+                deleted.remove(path.toFile());
+            }
+        }
+        if (!key.reset()) {
+            watchedDirs.remove(key);
+        }
+        return overflow;
+    }
+
+    private void recompile(InProcessKievCompiler compiler, List<File> sourceRoots, Set<File> changed, Set<File> deleted) {
+        File destinationDir = getDestinationDirectory().getAsFile().get();
+        DefaultKievJavaJointCompileSpec spec = new DefaultKievJavaJointCompileSpec();
+        spec.setSourcesRoots(sourceRoots);
+        spec.setSourceFiles(new ArrayList<>(changed));
+        spec.setDestinationDir(destinationDir);
+        spec.setWorkingDir(getProjectLayout().getProjectDirectory().getAsFile());
+        spec.setTempDir(getTemporaryDir());
+        // the unchanged sources are not compiled again, their classes are taken from the destination directory
+        List<File> classpath = new ArrayList<>();
+        classpath.add(destinationDir);
+        classpath.addAll(getClasspath().getFiles());
+        spec.setCompileClasspath(classpath);
+        spec.setAnnotationProcessorPath(new ArrayList<>());
+        spec.setKievClasspath(new ArrayList<>(getKievClasspath().getFiles()));
+        spec.setClasspathIndexDir(new File(getGradleUserHomeDirProvider().getGradleUserHomeDirectory(), "caches/kiev/classpath-index"));
+        spec.setCompileOptions(compileOptions);
+        spec.setKievCompileOptions(new MinimalKievCompileOptions(kievCompileOptions));
+
+        for (File f : deleted) {
+            relativize(sourceRoots, f).ifPresent(relativePath -> {
+                Set<String> classes = sourceClassesMapping.remove(relativePath);
+                if (classes == null) {
+                    classes = classesOf(destinationDir, relativePath);
+                }
+                for (String cls : classes) {
+                    new File(destinationDir, cls.replace('.', '/') + ".class").delete();
+                }
+            });
+        }
+        if (changed.isEmpty()) {
+            LOGGER.lifecycle("Deleted the classes of {} removed Kiev source file(s)", deleted.size());
+            return;
+        }
+
+        long started = System.nanoTime();
+        try {
+            WorkResult result = compiler.execute(spec);
+            if (result instanceof ApiCompilerResult) {
+                sourceClassesMapping.putAll(((ApiCompilerResult) result).getSourceClassesMapping());
+            }
+            LOGGER.lifecycle("Compiled {} changed Kiev source file(s) in {} ms", changed.size(), (System.nanoTime() - started) / 1_000_000);
+        } catch (CompilationFailedException e) {
+            // keep watching, the next change may fix the errors
+            LOGGER.error("Compilation of {} changed Kiev source file(s) failed: {}", changed.size(), e.getMessage());
+        }
+    }
+
+    /**
+     * The classes in the package directory of the source file which were compiled from it, for sources the compiler did
+     * not report classes for since the watch started.
+     */
+    private static Set<String> classesOf(File destinationDir, String relativePath) {
+        int slash = relativePath.lastIndexOf('/');
+        File packageDir = slash < 0 ? destinationDir : new File(destinationDir, relativePath.substring(0, slash));
+        String sourceFileName = relativePath.substring(slash + 1);
+        Set<String> classes = new HashSet<>();
+        for (KievClassAnalysis analysis : KievClassAnalyzer.analyzeDirectory(packageDir, f -> f.getParentFile().equals(packageDir)).values()) {
+            if (sourceFileName.equals(analysis.getSourceFileName())) {
+                classes.add(analysis.getClassName());
+            }
+        }
+        return classes;
+    }
+
+    private boolean isKievSource(File file) {
+        String name = file.getName();
+        for (String extension : kievCompileOptions.getFileExtensions()) {
+            if (name.endsWith("." + extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Optional<String> relativize(List<File> sourceRoots, File file) {
+        for (File root : sourceRoots) {
+            Path path = root.toPath().relativize(file.toPath());
+            if (!path.startsWith("..")) {
+                return Optional.of(path.toString().replace(File.separatorChar, '/'));
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static void register(WatchService watchService, Path root, Map<WatchKey, Path> watchedDirs) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path dir : (Iterable<Path>) paths.filter(Files::isDirectory)::iterator) {
+                WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                watchedDirs.put(key, dir);
+            }
+        }
+    }
+
+    private static List<File> listFiles(Path root) {
+        try (Stream<Path> paths = Files.walk(root)) {
+            return paths.filter(Files::isRegularFile).map(Path::toFile).collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
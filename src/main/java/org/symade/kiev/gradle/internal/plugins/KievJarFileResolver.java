@@ -0,0 +1,96 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.plugins;
+
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A build scoped cache of the {@link KievJarFile} found on a classpath, so the Kiev runtime of a classpath
+ * is inferred once per build rather than once per task.
+ *
+ * <p>Resolutions are keyed by the classpath entries. Entries mentioning {@code symade} may be symlinks which
+ * are resolved by {@link KievJarFile#parse(File)}, so their modification stamps are recorded and a resolution
+ * is redone when one of them changes.
+ */
+public abstract class KievJarFileResolver implements BuildService<BuildServiceParameters.None> {
+    public static final String SERVICE_NAME = "kievJarFileResolver";
+
+    private final ConcurrentMap<List<File>, Resolution> resolutions = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the first Kiev Jar on the given classpath, or {@code null} if there is none.
+     */
+    @Nullable
+    public KievJarFile resolve(Iterable<File> classpath) {
+        List<File> files = new ArrayList<>();
+        classpath.forEach(files::add);
+        Resolution resolution = resolutions.get(files);
+        if (resolution == null || !resolution.isUpToDate()) {
+            resolution = Resolution.of(files);
+            resolutions.put(files, resolution);
+        }
+        return resolution.jarFile;
+    }
+
+    private static final class Resolution {
+        @Nullable
+        private final KievJarFile jarFile;
+        private final List<File> candidates;
+        private final long[] stamps;
+
+        private Resolution(@Nullable KievJarFile jarFile, List<File> candidates) {
+            this.jarFile = jarFile;
+            this.candidates = candidates;
+            this.stamps = new long[candidates.size()];
+            for (int i = 0; i < stamps.length; i++) {
+                stamps[i] = candidates.get(i).lastModified();
+            }
+        }
+
+        static Resolution of(List<File> classpath) {
+            List<File> candidates = new ArrayList<>();
+            for (File file : classpath) {
+                if (!file.getName().contains("symade")) {
+                    continue;
+                }
+                candidates.add(file);
+                KievJarFile jarFile = KievJarFile.parse(file);
+                if (jarFile != null) {
+                    return new Resolution(jarFile, candidates);
+                }
+            }
+            return new Resolution(null, candidates);
+        }
+
+        boolean isUpToDate() {
+            for (int i = 0; i < stamps.length; i++) {
+                if (candidates.get(i).lastModified() != stamps[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -16,321 +16,182 @@
 
 package org.symade.kiev.gradle.internal.tasks.compile;
 
-import groovy.lang.Binding;
-import groovy.lang.GroovyShell;
-import groovy.lang.GroovySystem;
-import org.codehaus.groovy.ast.ClassNode;
-import org.codehaus.groovy.ast.InnerClassNode;
-import org.codehaus.groovy.classgen.GeneratorContext;
-import org.codehaus.groovy.control.CompilePhase;
-import org.codehaus.groovy.control.CompilerConfiguration;
-import org.codehaus.groovy.control.MultipleCompilationErrorsException;
-import org.codehaus.groovy.control.SourceUnit;
-import org.codehaus.groovy.control.customizers.CompilationCustomizer;
-import org.codehaus.groovy.control.customizers.ImportCustomizer;
-import org.codehaus.groovy.control.messages.ExceptionMessage;
-import org.gradle.api.GradleException;
-import org.gradle.api.file.ProjectLayout;
-import org.gradle.api.internal.tasks.compile.*;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import org.gradle.api.internal.tasks.compile.ApiCompilerResult;
+import org.gradle.api.internal.tasks.compile.CompilationFailedException;
+import org.gradle.api.internal.tasks.compile.CompilationSourceDirs;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
 import org.gradle.api.tasks.WorkResult;
-import org.gradle.internal.classloader.ClassLoaderUtils;
 import org.gradle.language.base.internal.compile.Compiler;
-import org.gradle.util.internal.VersionNumber;
-
+import org.gradle.util.internal.GFileUtils;
+import org.symade.kiev.gradle.api.plugins.KievPlugin;
+
+import javax.lang.model.util.Elements;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
-import java.lang.reflect.Method;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Map;
-
-public class ApiKievCompiler implements org.gradle.language.base.internal.compile.Compiler<KievJavaJointCompileSpec>, Serializable {
-    private final Compiler<JavaCompileSpec> javaCompiler;
-    private final ProjectLayout projectLayout;
-
-    public ApiKievCompiler(Compiler<JavaCompileSpec> javaCompiler, ProjectLayout projectLayout) {
-        this.javaCompiler = javaCompiler;
-        this.projectLayout = projectLayout;
-    }
-
-    private static abstract class IncrementalCompilationCustomizer extends CompilationCustomizer {
-        static IncrementalCompilationCustomizer fromSpec(KievJavaJointCompileSpec spec, ApiCompilerResult result) {
-            return new NoOpCompilationCustomizer();
-        }
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Compiles the {@code .java} sources among the Kiev sources with the Java compiler of the JDK, when
+ * {@link MinimalKievCompileOptions#isJointCompilation() joint compilation} is enabled. The compilation runs in three steps:
+ * <ol>
+ *     <li>the Kiev compiler generates Java stubs for the Kiev sources into the stub directory,</li>
+ *     <li>the Java compiler compiles the Java sources into the destination directory, with the stubs on the source path,
+ *     so only the stubs the Java sources refer to are compiled, and no class files are written for them,</li>
+ *     <li>the Kiev compiler compiles the Kiev sources, with the destination directory on the classpath.</li>
+ * </ol>
+ * If the Kiev compiler cannot generate stubs, all sources are compiled by the Kiev compiler.
+ *
+ * <p>Runs next to the {@link InProcessKievCompiler}, in the build process or in the compiler daemon.
+ */
+public class ApiKievCompiler implements Compiler<KievJavaJointCompileSpec>, Serializable {
+    private static final Logger LOGGER = Logging.getLogger(KievPlugin.class);
 
-        public IncrementalCompilationCustomizer() {
-            super(CompilePhase.CLASS_GENERATION);
-        }
+    private final InProcessKievCompiler kievCompiler;
 
-        abstract void addToConfiguration(CompilerConfiguration configuration);
+    public ApiKievCompiler(InProcessKievCompiler kievCompiler) {
+        this.kievCompiler = kievCompiler;
     }
 
-    private static class NoOpCompilationCustomizer extends IncrementalCompilationCustomizer {
-
-        @Override
-        public void addToConfiguration(CompilerConfiguration configuration) {
+    @Override
+    public WorkResult execute(KievJavaJointCompileSpec spec) {
+        List<File> javaSources = new ArrayList<>();
+        List<File> kievSources = new ArrayList<>();
+        for (File f : spec.getSourceFiles()) {
+            if (f.getName().endsWith(".java"))
+                javaSources.add(f);
+            else
+                kievSources.add(f);
         }
+        if (javaSources.isEmpty() || kievSources.isEmpty())
+            return kievCompiler.execute(spec);
 
-        @Override
-        public void call(SourceUnit source, GeneratorContext context, ClassNode classNode) throws org.codehaus.groovy.control.CompilationFailedException {
-            throw new UnsupportedOperationException();
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            LOGGER.info("No Java compiler in {}, compiling the Java sources with the Kiev compiler", org.gradle.internal.jvm.Jvm.current());
+            return kievCompiler.execute(spec);
         }
-    }
 
-    private static class TrackingClassGenerationCompilationCustomizer extends IncrementalCompilationCustomizer {
-        private final CompilationSourceDirs compilationSourceDirs;
-        private final ApiCompilerResult result;
-        private final CompilationClassBackupService compilationClassBackupService;
+        File stubDir = spec.getKievCompileOptions().getStubDir();
+        if (stubDir == null)
+            stubDir = new File(spec.getTempDir(), "stubs");
+        GFileUtils.deleteQuietly(stubDir);
+        stubDir.mkdirs();
 
-        private TrackingClassGenerationCompilationCustomizer(CompilationSourceDirs compilationSourceDirs, ApiCompilerResult result, CompilationClassBackupService compilationClassBackupService) {
-            this.compilationSourceDirs = compilationSourceDirs;
-            this.result = result;
-            this.compilationClassBackupService = compilationClassBackupService;
+        long started = System.nanoTime();
+        if (!kievCompiler.generateStubs(spec, kievSources, javaSources, stubDir)) {
+            LOGGER.info("kiev.Compiler cannot generate Java stubs, compiling the Java sources with the Kiev compiler");
+            return kievCompiler.execute(spec);
         }
-
-        @Override
-        public void call(SourceUnit source, GeneratorContext context, ClassNode classNode) {
-            inspectClassNode(source, classNode);
+        long stubsNanos = System.nanoTime() - started;
+
+        started = System.nanoTime();
+        Map<String, Set<String>> javaClassesMapping = compileJava(javac, spec, javaSources, stubDir);
+        long javaNanos = System.nanoTime() - started;
+        kievCompiler.throwIfCancelled();
+        LOGGER.info("Generated Kiev stubs in {} ms, compiled {} Java source file(s) in {} ms",
+                stubsNanos / 1_000_000, javaSources.size(), javaNanos / 1_000_000);
+
+        KievJavaJointCompileSpec kievSpec = ParallelKievCompiler.copyOf(spec);
+        List<File> classpath = new ArrayList<>();
+        classpath.add(spec.getDestinationDir());
+        classpath.addAll(spec.getCompileClasspath());
+        kievSpec.setSourceFiles(kievSources);
+        kievSpec.setCompileClasspath(classpath);
+        WorkResult kievResult = kievCompiler.execute(kievSpec);
+
+        KievCompileMetrics metrics = KievCompileResult.metricsOf(kievResult);
+        KievCompileResult result = new KievCompileResult(metrics != null ? metrics : new KievCompileMetrics());
+        if (kievResult instanceof KievCompileResult) {
+            result.getDiagnostics().addAll(((KievCompileResult) kievResult).getDiagnostics());
         }
-
-        private void inspectClassNode(SourceUnit sourceUnit, ClassNode classNode) {
-            String classFqName = classNode.getName();
-            String relativePath = compilationSourceDirs.relativize(new File(sourceUnit.getSource().getURI().getPath())).orElseThrow(IllegalStateException::new);
-            result.getSourceClassesMapping().computeIfAbsent(relativePath, key -> new HashSet<>()).add(classFqName);
-            compilationClassBackupService.maybeBackupClassFile(classFqName);
-            Iterator<InnerClassNode> iterator = classNode.getInnerClasses();
-            while (iterator.hasNext()) {
-                inspectClassNode(sourceUnit, iterator.next());
+        if (kievResult instanceof ApiCompilerResult) {
+            Map<String, Set<String>> kievClassesMapping = ((ApiCompilerResult) kievResult).getSourceClassesMapping();
+            // an empty mapping tells that the Kiev compiler does not expose it, a partial one would hide stale classes
+            if (!kievClassesMapping.isEmpty()) {
+                result.getSourceClassesMapping().putAll(kievClassesMapping);
+                result.getSourceClassesMapping().putAll(javaClassesMapping);
             }
         }
-
-        @Override
-        public void addToConfiguration(CompilerConfiguration configuration) {
-            configuration.addCompilationCustomizers(this);
-        }
-    }
-
-//    private File[] getSortedSourceFiles(KievJavaJointCompileSpec spec) {
-//        // Sort source files to work around https://issues.apache.org/jira/browse/GROOVY-7966
-//        File[] sortedSourceFiles = Iterables.toArray(spec.getSourceFiles(), File.class);
-//        Arrays.sort(sortedSourceFiles);
-//        return sortedSourceFiles;
-//    }
-
-    @Override
-    public WorkResult execute(final KievJavaJointCompileSpec spec) {
-        throw new RuntimeException("ApiKievCompiler is not Implemented");
-//        ApiCompilerResult result = new ApiCompilerResult();
-//        result.getAnnotationProcessingResult().setFullRebuildCause("Incremental annotation processing is not supported by Groovy.");
-//        GroovySystemLoaderFactory groovySystemLoaderFactory = new GroovySystemLoaderFactory();
-//        ClassLoader compilerClassLoader = this.getClass().getClassLoader();
-//        GroovySystemLoader compilerGroovyLoader = groovySystemLoaderFactory.forClassLoader(compilerClassLoader);
-//
-//        CompilerConfiguration configuration = new CompilerConfiguration();
-//        configuration.setVerbose(spec.getKievCompileOptions().isVerbose());
-//        configuration.setSourceEncoding(spec.getKievCompileOptions().getEncoding());
-//        configuration.setTargetBytecode(spec.getTargetCompatibility());
-//        configuration.setTargetDirectory(spec.getDestinationDir());
-//        canonicalizeValues(spec.getKievCompileOptions().getOptimizationOptions());
-//
-//        VersionNumber version = parseGroovyVersion();
-//        if (version.compareTo(VersionNumber.parse("2.5")) >= 0) {
-//            configuration.setParameters(spec.getKievCompileOptions().isParameters());
-//        } else if (spec.getKievCompileOptions().isParameters()) {
-//            throw new GradleException("Using Groovy compiler flag '--parameters' requires Groovy 2.5+ but found Groovy " + version);
-//        }
-//
-//        IncrementalCompilationCustomizer customizer = IncrementalCompilationCustomizer.fromSpec(spec, result);
-//        customizer.addToConfiguration(configuration);
-//
-//        try {
-//            configuration.setOptimizationOptions(spec.getKievCompileOptions().getOptimizationOptions());
-//        } catch (NoSuchMethodError ignored) { /* method was only introduced in Groovy 1.8 */ }
-//
-//        try {
-//            configuration.setDisabledGlobalASTTransformations(spec.getKievCompileOptions().getDisabledGlobalASTTransformations());
-//        } catch (NoSuchMethodError ignored) { /* method was only introduced in Groovy 2.0.0 */ }
-//
-//        Map<String, Object> jointCompilationOptions = new HashMap<String, Object>();
-//        final File stubDir = spec.getKievCompileOptions().getStubDir();
-//        stubDir.mkdirs();
-//        jointCompilationOptions.put("stubDir", stubDir);
-//        jointCompilationOptions.put("keepStubs", spec.getKievCompileOptions().isKeepStubs());
-//        configuration.setJointCompilationOptions(jointCompilationOptions);
-//
-//        ClassLoader classPathLoader;
-//        classPathLoader = new DefaultClassLoaderFactory().createIsolatedClassLoader("api-groovy-compile-loader", DefaultClassPath.of(spec.getCompileClasspath()));
-//        GroovyClassLoader compileClasspathClassLoader = new GroovyClassLoader(classPathLoader, null);
-//        GroovySystemLoader compileClasspathLoader = groovySystemLoaderFactory.forClassLoader(classPathLoader);
-//
-//        FilteringClassLoader.Spec groovyCompilerClassLoaderSpec = new FilteringClassLoader.Spec();
-//        groovyCompilerClassLoaderSpec.allowPackage("org.codehaus.groovy");
-//        groovyCompilerClassLoaderSpec.allowPackage("groovy");
-//        groovyCompilerClassLoaderSpec.allowPackage("groovyjarjarasm");
-//        // Disallow classes from Groovy Jar that reference external classes. Such classes must be loaded from astTransformClassLoader,
-//        // or a NoClassDefFoundError will occur. Essentially this is drawing a line between the Groovy compiler and the Groovy
-//        // library, albeit only for selected classes that run a high risk of being statically referenced from a transform.
-//        groovyCompilerClassLoaderSpec.disallowClass("groovy.util.GroovyTestCase");
-//        groovyCompilerClassLoaderSpec.disallowClass("groovy.test.GroovyTestCase");
-//        groovyCompilerClassLoaderSpec.disallowClass("org.codehaus.groovy.transform.NotYetImplementedASTTransformation");
-//        groovyCompilerClassLoaderSpec.disallowPackage("groovy.servlet");
-//        FilteringClassLoader groovyCompilerClassLoader = new FilteringClassLoader(GroovyClassLoader.class.getClassLoader(), groovyCompilerClassLoaderSpec);
-//
-//        // AST transforms need their own class loader that shares compiler classes with the compiler itself
-//        final GroovyClassLoader astTransformClassLoader = new GroovyClassLoader(groovyCompilerClassLoader, null);
-//        // can't delegate to compileClasspathLoader because this would result in ASTTransformation interface
-//        // (which is implemented by the transform class) being loaded by compileClasspathClassLoader (which is
-//        // where the transform class is loaded from)
-//        for (File file : spec.getCompileClasspath()) {
-//            astTransformClassLoader.addClasspath(file.getPath());
-//        }
-//        JavaAwareCompilationUnit unit = new JavaAwareCompilationUnit(configuration, compileClasspathClassLoader) {
-//            @Override
-//            public GroovyClassLoader getTransformLoader() {
-//                return astTransformClassLoader;
-//            }
-//        };
-//
-//        unit.addSources(getSortedSourceFiles(spec));
-//
-//        unit.setCompilerFactory(new JavaCompilerFactory() {
-//            @Override
-//            public JavaCompiler createCompiler(final CompilerConfiguration config) {
-//                return new JavaCompiler() {
-//                    @Override
-//                    public void compile(List<String> files, CompilationUnit cu) {
-//                        // When annotation processing isn't required, it's better to add the Groovy stubs as part of the source path.
-//                        // This allows compilations to complete faster, because only the Groovy stubs that are needed by the java source are compiled.
-//                        ImmutableList.Builder<File> sourcepathBuilder = ImmutableList.builder();
-//                        sourcepathBuilder.add(stubDir);
-//                        if (spec.getCompileOptions().getSourcepath() != null) {
-//                            sourcepathBuilder.addAll(spec.getCompileOptions().getSourcepath());
-//                        }
-//                        spec.getCompileOptions().setSourcepath(sourcepathBuilder.build());
-//
-//                        spec.setSourceFiles(Iterables.filter(spec.getSourceFiles(), new Predicate<File>() {
-//                            @Override
-//                            public boolean apply(File file) {
-//                                return hasExtension(file, ".java");
-//                            }
-//                        }));
-//
-//                        try {
-//                            WorkResult javaCompilerResult = javaCompiler.execute(spec);
-//                            if (javaCompilerResult instanceof ApiCompilerResult) {
-//                                copyJavaCompilerResult((ApiCompilerResult) javaCompilerResult);
-//                            }
-//                        } catch (CompilationFailedException e) {
-//                            Optional<ApiCompilerResult> partialResult = e.getCompilerPartialResult();
-//                            partialResult.ifPresent(result -> copyJavaCompilerResult(result));
-//                            cu.getErrorCollector().addFatalError(new SimpleMessage(e.getMessage(), cu));
-//                        }
-//                    }
-//                };
-//            }
-//
-//            private void copyJavaCompilerResult(ApiCompilerResult javaCompilerResult) {
-//                result.getSourceClassesMapping().putAll(javaCompilerResult.getSourceClassesMapping());
-//                result.getBackupClassFiles().putAll(javaCompilerResult.getBackupClassFiles());
-//            }
-//        });
-//
-//        try {
-//            unit.compile();
-//            return result;
-//        } catch (org.codehaus.groovy.control.CompilationFailedException e) {
-//            if (isFatalException(e)) {
-//                // This indicates a compiler bug and not a user error,
-//                // so we cannot recover from such error: we need to force full recompilation.
-//                throw new CompilationFatalException(e);
-//            }
-//
-//            System.err.println(e.getMessage());
-//            // Explicit flush, System.err is an auto-flushing PrintWriter unless it is replaced.
-//            System.err.flush();
-//            throw new CompilationFailedException(result);
-//        } finally {
-//            // Remove compile and AST types from the Groovy loader
-//            compilerGroovyLoader.discardTypesFrom(classPathLoader);
-//            compilerGroovyLoader.discardTypesFrom(astTransformClassLoader);
-//            //Discard the compile loader
-//            compileClasspathLoader.shutdown();
-//            CompositeStoppable.stoppable(classPathLoader, astTransformClassLoader).stop();
-//        }
+        return result;
     }
 
     /**
-     * Returns true if the exception is fatal, unrecoverable for the incremental compilation. Example of such error:
-     * <pre>
-     * error: startup failed:
-     * General error during instruction selection: java.lang.NoClassDefFoundError: Unable to load class ClassName due to missing dependency DependencyName
-     *   java.lang.RuntimeException: java.lang.NoClassDefFoundError: Unable to load class ClassName due to missing dependency DependencyName
-     *      at org.codehaus.groovy.control.CompilationUnit$IPrimaryClassNodeOperation.doPhaseOperation(CompilationUnit.java:977)
-     *      at org.codehaus.groovy.control.CompilationUnit.processPhaseOperations(CompilationUnit.java:672)
-     *      at org.codehaus.groovy.control.CompilationUnit.compile(CompilationUnit.java:636)
-     *      at org.codehaus.groovy.control.CompilationUnit.compile(CompilationUnit.java:611)
-     * </pre>
+     * Compiles the Java sources and returns the classes generated for each of them, by source path relative to its source root.
      */
-    private static boolean isFatalException(org.codehaus.groovy.control.CompilationFailedException e) {
-        if (e instanceof MultipleCompilationErrorsException) {
-            // Groovy compiler wraps any uncontrolled exception (e.g. IOException, NoClassDefFoundError and similar) in a `ExceptionMessage`
-            return ((MultipleCompilationErrorsException) e).getErrorCollector().getErrors().stream()
-                .anyMatch(message -> message instanceof ExceptionMessage);
+    private static Map<String, Set<String>> compileJava(JavaCompiler javac, KievJavaJointCompileSpec spec, List<File> javaSources, File stubDir) {
+        List<File> sourcepath = new ArrayList<>();
+        sourcepath.add(stubDir);
+        if (spec.getCompileOptions().getSourcepath() != null) {
+            for (File f : spec.getCompileOptions().getSourcepath())
+                sourcepath.add(f);
         }
-        return false;
-    }
 
-    private void applyConfigurationScript(File configScript, CompilerConfiguration configuration) {
-        VersionNumber version = parseGroovyVersion();
-        if (version.compareTo(VersionNumber.parse("2.1")) < 0) {
-            throw new GradleException("Using a Groovy compiler configuration script requires Groovy 2.1+ but found Groovy " + version + "");
+        List<String> options = new ArrayList<>();
+        options.add("-d");
+        options.add(spec.getDestinationDir().getAbsolutePath());
+        options.add("-classpath");
+        options.add(joinPaths(spec.getCompileClasspath()));
+        options.add("-sourcepath");
+        options.add(joinPaths(sourcepath));
+        // the stubs are only read, the Kiev compiler writes the real classes afterwards
+        options.add("-implicit:none");
+        if (spec.getSourceCompatibility() != null) {
+            options.add("-source");
+            options.add(spec.getSourceCompatibility());
         }
-        Binding binding = new Binding();
-        binding.setVariable("configuration", configuration);
-
-        CompilerConfiguration configuratorConfig = new CompilerConfiguration();
-        ImportCustomizer customizer = new ImportCustomizer();
-        customizer.addStaticStars("org.codehaus.groovy.control.customizers.builder.CompilerCustomizationBuilder");
-        configuratorConfig.addCompilationCustomizers(customizer);
-
-        GroovyShell shell = new GroovyShell(binding, configuratorConfig);
-        try {
-            shell.evaluate(configScript);
-        } catch (Exception e) {
-            throw new GradleException("Could not execute Groovy compiler configuration script: " + configScript.getAbsolutePath(), e);
+        if (spec.getTargetCompatibility() != null) {
+            options.add("-target");
+            options.add(spec.getTargetCompatibility());
         }
-    }
-
-    private VersionNumber parseGroovyVersion() {
-        String version;
-        try {
-            version = GroovySystem.getVersion();
-        } catch (NoSuchMethodError e) {
-            // for Groovy <1.6, we need to call org.codehaus.groovy.runtime.InvokerHelper#getVersion
-            try {
-                Class<?> ih = Class.forName("org.codehaus.groovy.runtime.InvokerHelper");
-                Method getVersion = ih.getDeclaredMethod("getVersion");
-                version = (String) getVersion.invoke(ih);
-            } catch (Exception e1) {
-                throw new GradleException("Unable to determine Groovy version.", e1);
-            }
+        if (spec.getCompileOptions().isDebug())
+            options.add("-g");
+        if (spec.getAnnotationProcessorPath() == null || spec.getAnnotationProcessorPath().isEmpty()) {
+            options.add("-proc:none");
+        } else {
+            options.add("-processorpath");
+            options.add(joinPaths(spec.getAnnotationProcessorPath()));
         }
-        return VersionNumber.parse(version);
-    }
 
-    // Make sure that map only contains Boolean.TRUE and Boolean.FALSE values and no other Boolean instances.
-    // This is necessary because:
-    // 1. serialization/deserialization of the compile spec doesn't preserve Boolean.TRUE/Boolean.FALSE but creates new instances
-    // 1. org.codehaus.groovy.classgen.asm.WriterController makes identity comparisons
-    private void canonicalizeValues(Map<String, Boolean> options) {
-        for (String key : options.keySet()) {
-            // unboxing and boxing does the trick
-            boolean value = options.get(key);
-            options.put(key, value);
+        String encoding = spec.getKievCompileOptions().getEncoding();
+        Charset charset = encoding == null ? null : Charset.forName(encoding);
+        CompilationSourceDirs sourceDirs = new CompilationSourceDirs(spec);
+        Map<String, Set<String>> classesMapping = new HashMap<>();
+        try (StandardJavaFileManager fileManager = javac.getStandardFileManager(null, null, charset)) {
+            Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(javaSources);
+            JavacTask task = (JavacTask) javac.getTask(null, fileManager, null, options, null, units);
+            Elements elements = task.getElements();
+            task.addTaskListener(new TaskListener() {
+                @Override
+                public void finished(TaskEvent e) {
+                    if (e.getKind() != TaskEvent.Kind.GENERATE || e.getSourceFile() == null || e.getTypeElement() == null)
+                        return;
+                    sourceDirs.relativize(new File(e.getSourceFile().toUri())).ifPresent(source ->
+                            classesMapping.computeIfAbsent(source, key -> new HashSet<>()).add(elements.getBinaryName(e.getTypeElement()).toString()));
+                }
+            });
+            if (!task.call())
+                throw new CompilationFailedException();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        return classesMapping;
     }
 
-    private ClassLoader getExtClassLoader() {
-        return ClassLoaderUtils.getPlatformClassLoader();
+    private static String joinPaths(Iterable<File> files) {
+        StringJoiner joiner = new StringJoiner(File.pathSeparator);
+        for (File f : files)
+            joiner.add(f.getAbsolutePath());
+        return joiner.toString();
     }
 }
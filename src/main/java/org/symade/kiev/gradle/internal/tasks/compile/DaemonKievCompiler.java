@@ -0,0 +1,137 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import org.gradle.api.internal.ClassPathRegistry;
+import org.gradle.api.internal.tasks.compile.BaseForkOptionsConverter;
+import org.gradle.api.internal.tasks.compile.daemon.AbstractDaemonCompiler;
+import org.gradle.api.internal.tasks.compile.daemon.CompilerWorkerExecutor;
+import org.gradle.api.internal.tasks.compile.daemon.CompilerWorkerExecutor.CompilerParameters;
+import org.gradle.api.logging.LogLevel;
+import org.gradle.api.logging.Logger;
+import org.gradle.initialization.ClassLoaderRegistry;
+import org.gradle.internal.classloader.ClasspathUtil;
+import org.gradle.internal.classloader.FilteringClassLoader;
+import org.gradle.internal.classloader.VisitableURLClassLoader;
+import org.gradle.internal.classpath.ClassPath;
+import org.gradle.internal.classpath.DefaultClassPath;
+import org.gradle.language.base.internal.compile.Compiler;
+import org.gradle.process.JavaForkOptions;
+import org.gradle.process.internal.JavaForkOptionsFactory;
+import org.gradle.workers.internal.DaemonForkOptions;
+import org.gradle.workers.internal.DaemonForkOptionsBuilder;
+import org.gradle.workers.internal.HierarchicalClassLoaderStructure;
+import org.gradle.workers.internal.KeepAliveMode;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Runs the Kiev compiler in a long-lived worker daemon.
+ *
+ * <p>The daemon is kept alive across builds ({@link KeepAliveMode#DAEMON}) and is reused by every compilation with
+ * compatible fork options, so the compiler keeps its loaded and JIT-compiled classes between compilations.
+ */
+public class DaemonKievCompiler extends AbstractDaemonCompiler<KievJavaJointCompileSpec> {
+    private final Class<? extends Compiler<KievJavaJointCompileSpec>> compilerClass;
+    private final ClassPathRegistry classPathRegistry;
+    private final ClassLoaderRegistry classLoaderRegistry;
+    private final JavaForkOptionsFactory forkOptionsFactory;
+    private final File daemonWorkingDir;
+
+    public DaemonKievCompiler(File daemonWorkingDir, Class<? extends Compiler<KievJavaJointCompileSpec>> compilerClass, ClassPathRegistry classPathRegistry, CompilerWorkerExecutor compilerWorkerExecutor, ClassLoaderRegistry classLoaderRegistry, JavaForkOptionsFactory forkOptionsFactory) {
+        super(compilerWorkerExecutor);
+        this.compilerClass = compilerClass;
+        this.classPathRegistry = classPathRegistry;
+        this.classLoaderRegistry = classLoaderRegistry;
+        this.forkOptionsFactory = forkOptionsFactory;
+        this.daemonWorkingDir = daemonWorkingDir;
+    }
+
+    @Override
+    protected CompilerParameters getCompilerParameters(KievJavaJointCompileSpec spec) {
+        return new KievCompilerParameters(compilerClass.getName(), new Object[0], spec);
+    }
+
+    @Override
+    protected Set<Class<?>> getAdditionalCompilerServices() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    protected DaemonForkOptions toDaemonForkOptions(KievJavaJointCompileSpec spec) {
+        MinimalKievCompilerDaemonForkOptions kievOptions = spec.getKievCompileOptions().getForkOptions();
+        JavaForkOptions javaForkOptions = new BaseForkOptionsConverter(forkOptionsFactory).transform(kievOptions);
+        javaForkOptions.setWorkingDir(daemonWorkingDir);
+        String executable = spec.getCompileOptions().getForkOptions().getExecutable();
+        if (executable != null) {
+            javaForkOptions.setExecutable(executable);
+        }
+
+        // The Kiev compiler itself is loaded by the compiler from spec.getKievClasspath() inside the daemon,
+        // the daemon only needs the Java compile infrastructure and this plugin.
+        ClassPath compilerClasspath = classPathRegistry.getClassPath("JAVA-COMPILER")
+            .plus(DefaultClassPath.of(ClasspathUtil.getClasspathForClass(DaemonKievCompiler.class)));
+
+        HierarchicalClassLoaderStructure classLoaderStructure =
+            new HierarchicalClassLoaderStructure(classLoaderRegistry.getGradleWorkerExtensionSpec())
+                .withChild(getMinimalGradleFilter())
+                .withChild(new VisitableURLClassLoader.Spec("kiev-compiler", compilerClasspath.getAsURLs()));
+
+        return new DaemonForkOptionsBuilder(forkOptionsFactory)
+            .javaForkOptions(javaForkOptions)
+            .withClassLoaderStructure(classLoaderStructure)
+            .keepAliveMode(KeepAliveMode.DAEMON)
+            .build();
+    }
+
+    private static FilteringClassLoader.Spec getMinimalGradleFilter() {
+        // Allow only certain things from the underlying classloader
+        FilteringClassLoader.Spec gradleFilterSpec = new FilteringClassLoader.Spec();
+
+        // Logging
+        gradleFilterSpec.allowPackage("org.slf4j");
+        gradleFilterSpec.allowClass(Logger.class);
+        gradleFilterSpec.allowClass(LogLevel.class);
+
+        // Native
+        gradleFilterSpec.allowPackage("org.gradle.internal.nativeintegration");
+        gradleFilterSpec.allowPackage("org.gradle.internal.nativeplatform");
+        gradleFilterSpec.allowPackage("net.rubygrapefruit.platform");
+
+        // Workers
+        gradleFilterSpec.allowPackage("org.gradle.workers");
+        gradleFilterSpec.allowPackage("javax.inject");
+
+        return gradleFilterSpec;
+    }
+
+    public static class KievCompilerParameters extends CompilerParameters {
+        private final KievJavaJointCompileSpec compileSpec;
+
+        public KievCompilerParameters(String compilerClassName, Object[] compilerInstanceParameters, KievJavaJointCompileSpec compileSpec) {
+            super(compilerClassName, compilerInstanceParameters);
+            this.compileSpec = compileSpec;
+        }
+
+        @Override
+        public KievJavaJointCompileSpec getCompileSpec() {
+            return compileSpec;
+        }
+    }
+}
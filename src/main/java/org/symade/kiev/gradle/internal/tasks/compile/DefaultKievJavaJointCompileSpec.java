@@ -18,11 +18,13 @@ package org.symade.kiev.gradle.internal.tasks.compile;
 
 import java.io.File;
 import java.util.List;
+import javax.annotation.Nullable;
 import org.gradle.api.internal.tasks.compile.DefaultJavaCompileSpec;
 
 public class DefaultKievJavaJointCompileSpec extends DefaultJavaCompileSpec implements KievJavaJointCompileSpec {
     private MinimalKievCompileOptions kievCompileOptions;
     private List<File> kievClasspath;
+    private File classpathIndexDir;
 
     @Override
     public MinimalKievCompileOptions getKievCompileOptions() {
@@ -42,4 +44,15 @@ public class DefaultKievJavaJointCompileSpec extends DefaultJavaCompileSpec impl
     public void setKievClasspath(List<File> groovyClasspath) {
         this.kievClasspath = groovyClasspath;
     }
+
+    @Nullable
+    @Override
+    public File getClasspathIndexDir() {
+        return classpathIndexDir;
+    }
+
+    @Override
+    public void setClasspathIndexDir(@Nullable File classpathIndexDir) {
+        this.classpathIndexDir = classpathIndexDir;
+    }
 }
@@ -1,28 +1,59 @@
 package org.symade.kiev.gradle.internal.tasks.compile;
 
+import org.gradle.api.BuildCancelledException;
 import org.gradle.api.internal.tasks.compile.ApiCompilerResult;
 import org.gradle.api.internal.tasks.compile.CompilationFailedException;
+import org.gradle.api.internal.tasks.compile.CompilationSourceDirs;
 import org.gradle.api.logging.Logger;
 import org.gradle.api.logging.Logging;
 import org.gradle.api.tasks.WorkResult;
+import org.gradle.initialization.BuildCancellationToken;
 import org.gradle.workers.internal.DefaultWorkResult;
 import org.symade.kiev.gradle.api.plugins.KievPlugin;
 
+import javax.annotation.Nullable;
+
 import java.io.*;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class InProcessKievCompiler implements KievCompiler<KievJavaJointCompileSpec>, Serializable {
 
     private static final Logger LOGGER = Logging.getLogger(KievPlugin.class);
 
+    private final transient KievCompilerClassLoaderPool classLoaderPool;
+    private final transient BuildCancellationToken cancellationToken;
+    private final boolean measurePeakHeap;
+
+    public InProcessKievCompiler() {
+        this(null);
+    }
+
+    public InProcessKievCompiler(@Nullable KievCompilerClassLoaderPool classLoaderPool) {
+        this(classLoaderPool, null);
+    }
+
+    public InProcessKievCompiler(@Nullable KievCompilerClassLoaderPool classLoaderPool, @Nullable BuildCancellationToken cancellationToken) {
+        this(classLoaderPool, cancellationToken, false);
+    }
+
+    /**
+     * @param measurePeakHeap whether the compiler runs in a JVM of its own, whose heap peak it may measure
+     */
+    public InProcessKievCompiler(@Nullable KievCompilerClassLoaderPool classLoaderPool, @Nullable BuildCancellationToken cancellationToken, boolean measurePeakHeap) {
+        this.classLoaderPool = classLoaderPool;
+        this.cancellationToken = cancellationToken;
+        this.measurePeakHeap = measurePeakHeap;
+    }
+
     @Override
     public WorkResult execute(KievJavaJointCompileSpec spec) {
         LOGGER.quiet("Initializing Kiev compiler in JVM: "+org.gradle.internal.jvm.Jvm.current());
@@ -35,23 +66,19 @@ public class InProcessKievCompiler implements KievCompiler<KievJavaJointCompileS
 
 
         Object kievCompiler = null;
+        KievCompileMetrics metrics = new KievCompileMetrics();
+        metrics.setCompilerVersion(compilerVersion(spec.getKievClasspath()));
+        long started = System.nanoTime();
 
-        ArrayList<URL> classLoaderURLs = new ArrayList<>();
-        for (File f : spec.getKievClasspath()) {
-            try {
-                classLoaderURLs.add(f.toURI().toURL());
-            } catch (MalformedURLException e) {
-                // ignore
-            }
-        }
-        try (URLClassLoader kievCompilerClassLoader = new URLClassLoader(
-                classLoaderURLs.toArray(new URL[0]),
-                this.getClass().getClassLoader()
-        ))
+        try (KievCompilerClassLoaderPool.Lease kievCompilerClassLoader = acquireClassLoader(spec))
         {
+            metrics.addClassLoaderNanos(System.nanoTime() - started);
             try {
-                kievCompiler = kievCompilerClassLoader.loadClass("kiev.Compiler").getDeclaredConstructor().newInstance();
+                started = System.nanoTime();
+                kievCompiler = kievCompilerClassLoader.getClassLoader().loadClass("kiev.Compiler").getDeclaredConstructor().newInstance();
+                metrics.addInstantiationNanos(System.nanoTime() - started);
             } catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
+                kievCompilerClassLoader.discard();
                 LOGGER.error("Class kiev.Compiler not found", e);
                 throw new RuntimeException(e.getClass() + ": kiev.Compiler not on classpath: " + e);
             } catch (Exception e) {
@@ -79,19 +106,9 @@ public class InProcessKievCompiler implements KievCompiler<KievJavaJointCompileS
 //                if (!classPaths.contains(path))
 //                    classPaths.add(path);
 //            }
-            StringBuilder classpath = new StringBuilder();
-            for (String path : classPaths) {
-                if (!classpath.isEmpty())
-                    classpath.append(File.pathSeparator);
-                classpath.append(path);
-            }
 
             List<String> args = new ArrayList<>();
             args.add("-ide");
-            if (!classpath.isEmpty()) {
-                args.add("-classpath");
-                args.add(classpath.toString());
-            }
             args.add("-javacerrors");
             args.add("-no-btd");
             args.add("-d");
@@ -108,27 +125,43 @@ public class InProcessKievCompiler implements KievCompiler<KievJavaJointCompileS
 
             args.addAll(spec.getCompileOptions().getCompilerArgs());
 
-            File listOfFiles = new File(spec.getTempDir(), "files.txt");
-            try (FileWriter wr = new FileWriter(listOfFiles, StandardCharsets.UTF_8)) {
-                for (File f : allSourceFiles) {
-                    wr.write(f.getAbsolutePath());
-                    wr.write('\n');
-                }
-            }
-            args.add("@" + listOfFiles.getPath());
+            List<String> sourcePaths = new ArrayList<>(allSourceFiles.size());
+            for (File f : allSourceFiles)
+                sourcePaths.add(f.getAbsolutePath());
 
             Method kievRunMethod = null;
+            Object[] kievRunArgs;
             //Field kievSourceMapping = null;
             //Field kievErrorCount = null;
             try {
-                kievRunMethod = kievCompiler.getClass().getMethod("run", String[].class);
-                //kievSourceMapping = kievCompiler.getClass().getField("sourceToClassMapping");
-                //kievErrorCount = kievCompiler.getClass().getField("errorCount");
+                kievRunMethod = kievCompiler.getClass().getMethod("run", String[].class, List.class, List.class);
+                kievRunArgs = new Object[]{ args.toArray(new String[0]), sourcePaths, new ArrayList<>(classPaths) };
+                LOGGER.info("Passing {} source file(s) and {} classpath entries to kiev.Compiler directly", sourcePaths.size(), classPaths.size());
             } catch (NoSuchMethodException e) {
-                LOGGER.error("Cannot resolve kiev.Compiler.run(String[] args) or kiev.Compiler.getSourceToClassMapping()", e);
-                return new DefaultWorkResult(false, e);
+                kievRunMethod = null;
+                kievRunArgs = null;
+            }
+            if (kievRunMethod == null) {
+                // older compilers only take the command line, with the source files in an argument file
+                if (!classPaths.isEmpty()) {
+                    args.add(1, "-classpath");
+                    args.add(2, String.join(File.pathSeparator, classPaths));
+                }
+                args.add("@" + writeSourceListFile(spec.getTempDir(), sourcePaths).getPath());
+                try {
+                    kievRunMethod = kievCompiler.getClass().getMethod("run", String[].class);
+                    kievRunArgs = new Object[]{ args.toArray(new String[0]) };
+                    //kievSourceMapping = kievCompiler.getClass().getField("sourceToClassMapping");
+                    //kievErrorCount = kievCompiler.getClass().getField("errorCount");
+                } catch (NoSuchMethodException e) {
+                    LOGGER.error("Cannot resolve kiev.Compiler.run(String[] args) or kiev.Compiler.getSourceToClassMapping()", e);
+                    return new DefaultWorkResult(false, e);
+                }
             }
 
+            passClasspathIndex(kievCompiler, spec);
+            KievDiagnosticCollector diagnostics = installDiagnosticListener(kievCompiler, spec.getKievCompileOptions().getMaxErrors(), spec.getKievCompileOptions().isDeferDiagnostics());
+
             {
                 StringBuilder sb = new StringBuilder("kievCompiler args:");
                 for (String a : args)
@@ -144,22 +177,41 @@ public class InProcessKievCompiler implements KievCompiler<KievJavaJointCompileS
             //Map<String, Set<String>> sourceClassesMapping = null;
             int exitCode = 0;
             //int errorCount = 0;
-            try {
-                Object argsArr = args.toArray(new String[0]);
+            long runStartedMillis = System.currentTimeMillis();
+            KievCompileMetrics.JvmUsage jvmUsage = KievCompileMetrics.startJvmUsage(measurePeakHeap);
+            started = System.nanoTime();
+            try (KievCompileCancellation cancellation = KievCompileCancellation.register(cancellationToken, kievCompiler)) {
                 try {
-                    exitCode = (Integer) kievRunMethod.invoke(kievCompiler, argsArr);
+                    cancellation.throwIfCancelled();
+                    exitCode = (Integer) kievRunMethod.invoke(kievCompiler, kievRunArgs);
                 }
                 catch (InvocationTargetException e) {
+                    if (cancellation.isCancelled()) {
+                        kievCompilerClassLoader.discard();
+                        cancellation.throwIfCancelled();
+                    }
                     if (e.getCause() == null) {
+                        kievCompilerClassLoader.discard();
                         LOGGER.error("Unexpected error during kiev.Compiler.run(String[] args)", e);
                         throw new CompilationFailedException(e);
                     }
                     if (!e.getCause().getClass().getName().contains("CompilationAbortError")) {
+                        // the compiler may be left in an inconsistent state, do not reuse it
+                        kievCompilerClassLoader.discard();
                         LOGGER.error("Unexpected error during kiev.Compiler.run(String[] args)", e.getCause());
                         throw new CompilationFailedException(e.getCause());
                     }
                     // ignore CompilationAbortError, it's a normal completition
                 }
+                finally {
+                    metrics.addCompileNanos(System.nanoTime() - started);
+                    jvmUsage.stop(metrics);
+                }
+                if (cancellation.isCancelled()) {
+                    // the compiler may have stopped anywhere, do not reuse it
+                    kievCompilerClassLoader.discard();
+                    cancellation.throwIfCancelled();
+                }
                 //noinspection unchecked
                 //sourceClassesMapping = (Map<String, Set<String>>)kievSourceMapping.get(null);
                 //errorCount = (Integer)kievErrorCount.get(null);
@@ -167,19 +219,21 @@ public class InProcessKievCompiler implements KievCompiler<KievJavaJointCompileS
                 LOGGER.error("Cannot access error counts", e);
                 throw new CompilationFailedException(e);
             }
+            KievCompileResult result = new KievCompileResult(metrics);
+            if (diagnostics != null)
+                result.getDiagnostics().addAll(diagnostics.getDiagnostics());
+            if (diagnostics != null && (exitCode != 0 || diagnostics.getErrorCount() > 0))
+                throw new CompilationFailedException(result);
             if (exitCode != 0)
                 throw new CompilationFailedException(exitCode);
 
-
-            ApiCompilerResult result = new ApiCompilerResult();
-            //if (sourceClassesMapping != null) {
-            //    result.getSourceClassesMapping().putAll(sourceClassesMapping);
-            //}
+            result.getSourceClassesMapping().putAll(readSourceClassesMapping(kievCompiler.getClass(), spec, allSourceFiles));
+            metrics.recordCompilerRun(allSourceFiles.size(), countClassesEmitted(result, spec.getDestinationDir(), runStartedMillis));
             //if (errorCount > 0 || sourceClassesMapping == null) {
             //    LOGGER.error("Got errors during compilation");
             //    throw new CompilationFailedException(result);
             //}
-            LOGGER.quiet("Successfully compiled "+allSourceFiles.size()+" files");
+            LOGGER.quiet("Successfully compiled "+allSourceFiles.size()+" files in "+(metrics.getCompileNanos() / 1_000_000)+" ms");
             return result;
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -252,4 +306,207 @@ public class InProcessKievCompiler implements KievCompiler<KievJavaJointCompileS
 //        }
     }
 
+    /**
+     * Reads the source to class mapping of the last compilation, if the Kiev compiler exposes it.
+     * Sources are made relative to their source root and classes are converted to fully qualified names.
+     */
+    private static Map<String, Set<String>> readSourceClassesMapping(Class<?> compilerClass, KievJavaJointCompileSpec spec, List<File> sourceFiles) {
+        Object mapping;
+        try {
+            mapping = compilerClass.getField("sourceToClassMapping").get(null);
+        } catch (NoSuchFieldException | IllegalAccessException | NullPointerException e) {
+            LOGGER.info("Kiev compiler does not expose kiev.Compiler.sourceToClassMapping, incremental compilation is not possible");
+            return Collections.emptyMap();
+        }
+        if (!(mapping instanceof Map))
+            return Collections.emptyMap();
+
+        CompilationSourceDirs sourceDirs = new CompilationSourceDirs(spec);
+        Set<String> compiled = new HashSet<>();
+        for (File f : sourceFiles)
+            sourceDirs.relativize(f).ifPresent(compiled::add);
+
+        Map<String, Set<String>> result = new HashMap<>();
+        for (Map.Entry<?, ?> e : ((Map<?, ?>) mapping).entrySet()) {
+            if (e.getKey() == null || !(e.getValue() instanceof Collection))
+                continue;
+            File source = new File(e.getKey().toString());
+            Optional<String> relative = source.isAbsolute()
+                    ? sourceDirs.relativize(source)
+                    : Optional.of(source.getPath().replace(File.separatorChar, '/'));
+            // a class loader is only reused without reset by the same task, whose earlier compilations may have left entries
+            if (!relative.isPresent() || !compiled.contains(relative.get()))
+                continue;
+            Set<String> classes = new HashSet<>();
+            for (Object cls : (Collection<?>) e.getValue())
+                classes.add(cls.toString().replace('/', '.'));
+            result.put(relative.get(), classes);
+        }
+        return result;
+    }
+
+    private static int countClassesEmitted(ApiCompilerResult result, File destinationDir, long sinceMillis) {
+        if (!result.getSourceClassesMapping().isEmpty()) {
+            int count = 0;
+            for (Set<String> classes : result.getSourceClassesMapping().values())
+                count += classes.size();
+            return count;
+        }
+        // file system timestamps may be coarse, count everything written in the second the compilation started
+        long since = sinceMillis - sinceMillis % 1000;
+        if (!destinationDir.isDirectory())
+            return 0;
+        try (Stream<Path> paths = Files.walk(destinationDir.toPath())) {
+            return (int) paths.filter(p -> p.toString().endsWith(".class") && p.toFile().lastModified() >= since).count();
+        } catch (IOException | UncheckedIOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Generates Java stubs for the Kiev sources of a joint compilation into the given directory, see {@link ApiKievCompiler}.
+     * The Java sources are only read for their declarations. Returns {@code false} if the Kiev compiler cannot generate stubs.
+     */
+    boolean generateStubs(KievJavaJointCompileSpec spec, List<File> kievSources, List<File> javaSources, File stubDir) {
+        try (KievCompilerClassLoaderPool.Lease kievCompilerClassLoader = acquireClassLoader(spec)) {
+            Object kievCompiler;
+            try {
+                kievCompiler = kievCompilerClassLoader.getClassLoader().loadClass("kiev.Compiler").getDeclaredConstructor().newInstance();
+            } catch (ClassNotFoundException e) {
+                kievCompilerClassLoader.discard();
+                throw new RuntimeException(e.getClass() + ": kiev.Compiler not on classpath: " + e);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            Method generateStubsMethod;
+            try {
+                generateStubsMethod = kievCompiler.getClass().getMethod("generateStubs", String[].class, List.class, List.class, List.class, File.class);
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+
+            List<String> args = new ArrayList<>();
+            args.add("-ide");
+            args.add("-javacerrors");
+            args.addAll(spec.getCompileOptions().getCompilerArgs());
+            List<String> classPaths = new ArrayList<>();
+            for (File f : spec.getCompileClasspath())
+                classPaths.add(f.getAbsolutePath());
+
+            int exitCode;
+            try (KievCompileCancellation cancellation = KievCompileCancellation.register(cancellationToken, kievCompiler)) {
+                cancellation.throwIfCancelled();
+                exitCode = (Integer) generateStubsMethod.invoke(kievCompiler, args.toArray(new String[0]), absolutePaths(kievSources), absolutePaths(javaSources), classPaths, stubDir);
+                if (cancellation.isCancelled()) {
+                    kievCompilerClassLoader.discard();
+                    cancellation.throwIfCancelled();
+                }
+            } catch (InvocationTargetException e) {
+                kievCompilerClassLoader.discard();
+                throwIfCancelled();
+                LOGGER.error("Unexpected error during kiev.Compiler.generateStubs()", e.getCause());
+                throw new CompilationFailedException(e.getCause());
+            } catch (IllegalAccessException e) {
+                throw new CompilationFailedException(e);
+            }
+            if (exitCode != 0)
+                throw new CompilationFailedException(exitCode);
+            return true;
+        }
+    }
+
+    /**
+     * Throws if the build has been cancelled, for callers running several steps.
+     */
+    void throwIfCancelled() {
+        if (cancellationToken != null && cancellationToken.isCancellationRequested())
+            throw new BuildCancelledException("Kiev compilation was cancelled");
+    }
+
+    private static List<String> absolutePaths(List<File> files) {
+        List<String> paths = new ArrayList<>(files.size());
+        for (File f : files)
+            paths.add(f.getAbsolutePath());
+        return paths;
+    }
+
+    /**
+     * Installs a {@link KievDiagnosticCollector} in compilers which accept a diagnostic listener.
+     * Returns {@code null} if the compiler only prints its diagnostics.
+     */
+    @Nullable
+    private static KievDiagnosticCollector installDiagnosticListener(Object kievCompiler, int maxErrors, boolean deferLogging) {
+        Method setDiagnosticListener;
+        try {
+            setDiagnosticListener = kievCompiler.getClass().getMethod("setDiagnosticListener", java.util.function.Predicate.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+        KievDiagnosticCollector collector = new KievDiagnosticCollector(maxErrors, deferLogging);
+        try {
+            setDiagnosticListener.invoke(kievCompiler, collector);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            LOGGER.info("Cannot pass a diagnostic listener to kiev.Compiler", e);
+            return null;
+        }
+        return collector;
+    }
+
+    /**
+     * Hands the indexes of the classpath jars to compilers which accept them, see {@link KievClasspathIndex}.
+     */
+    private static void passClasspathIndex(Object kievCompiler, KievJavaJointCompileSpec spec) {
+        if (spec.getClasspathIndexDir() == null)
+            return;
+        Method setClasspathIndex;
+        try {
+            setClasspathIndex = kievCompiler.getClass().getMethod("setClasspathIndex", Map.class);
+        } catch (NoSuchMethodException e) {
+            return;
+        }
+        long started = System.nanoTime();
+        Map<String, ByteBuffer> indexes = new KievClasspathIndex(spec.getClasspathIndexDir()).index(spec.getCompileClasspath());
+        try {
+            setClasspathIndex.invoke(kievCompiler, indexes);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            LOGGER.info("Cannot pass the classpath index to kiev.Compiler", e);
+            return;
+        }
+        LOGGER.info("Passed the index of {} classpath jar(s) to kiev.Compiler in {} ms", indexes.size(), (System.nanoTime() - started) / 1_000_000);
+    }
+
+    /**
+     * Writes the source files into the argument file passed to the compiler. The file is rewritten only if
+     * the list has changed since the last compilation, the hash of its content is kept next to it.
+     */
+    private static File writeSourceListFile(File tempDir, List<String> sourcePaths) throws IOException {
+        File listOfFiles = new File(tempDir, "files.txt");
+        File hashFile = new File(tempDir, "files.txt.sha256");
+        StringBuilder content = new StringBuilder();
+        for (String path : sourcePaths)
+            content.append(path).append('\n');
+        byte[] bytes = content.toString().getBytes(StandardCharsets.UTF_8);
+        String hash = KievFileHasher.toHex(KievFileHasher.newDigest().digest(bytes));
+        if (listOfFiles.isFile() && hashFile.isFile() && hash.equals(new String(Files.readAllBytes(hashFile.toPath()), StandardCharsets.UTF_8)))
+            return listOfFiles;
+        Files.write(listOfFiles.toPath(), bytes);
+        Files.write(hashFile.toPath(), hash.getBytes(StandardCharsets.UTF_8));
+        return listOfFiles;
+    }
+
+    @Nullable
+    private static String compilerVersion(List<File> kievClasspath) {
+        for (File f : kievClasspath) {
+            if (f.getName().contains("symade"))
+                return f.getName();
+        }
+        return kievClasspath.isEmpty() ? null : kievClasspath.get(0).getName();
+    }
+
+    private KievCompilerClassLoaderPool.Lease acquireClassLoader(KievJavaJointCompileSpec spec) {
+        if (classLoaderPool == null) {
+            return KievCompilerClassLoaderPool.createUncached(spec.getKievClasspath(), this.getClass().getClassLoader());
+        }
+        return classLoaderPool.acquire(spec.getKievClasspath(), this.getClass().getClassLoader(), spec.getDestinationDir().getAbsolutePath());
+    }
 }
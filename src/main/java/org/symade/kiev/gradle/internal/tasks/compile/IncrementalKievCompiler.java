@@ -0,0 +1,409 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import org.gradle.api.internal.tasks.compile.ApiCompilerResult;
+import org.gradle.api.internal.tasks.compile.CompilationSourceDirs;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.tasks.WorkResult;
+import org.gradle.api.tasks.WorkResults;
+import org.gradle.language.base.internal.compile.Compiler;
+import org.symade.kiev.gradle.api.plugins.KievPlugin;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.util.*;
+
+/**
+ * A Kiev {@link Compiler} which recompiles only the changed source files and the sources depending on them.
+ *
+ * <p>Dependencies are taken from the analysis of the compiled classes (see {@link KievClassAnalyzer}). The changed
+ * sources are compiled first; the sources referencing a class whose ABI has changed are compiled in the next round,
+ * and so on until no ABI changes anymore. Sources are mapped to their classes by the mapping reported by the Kiev
+ * compiler, or, if the compiler does not report it, by the {@code SourceFile} attribute of the classes.
+ *
+ * <p>A change of the compile classpath recompiles the sources referencing the classpath classes whose ABI has
+ * changed, see {@link KievClasspathSnapshotter}.
+ *
+ * <p>Falls back to a full recompilation when there is no usable previous compilation data, e.g. because the
+ * previous compilation failed, or when a compile-time constant changes, since constants are inlined into the
+ * classes using them and cannot be traced.
+ */
+public class IncrementalKievCompiler implements Compiler<KievJavaJointCompileSpec> {
+    private static final Logger LOGGER = Logging.getLogger(KievPlugin.class);
+    private static final int MAX_ROUNDS = 5;
+
+    private final Compiler<KievJavaJointCompileSpec> delegate;
+    private final Compiler<KievJavaJointCompileSpec> cleaningCompiler;
+    private final File previousCompilationDataFile;
+    private final File classDependencyDataFile;
+    private final File classpathSnapshotFile;
+    private final KievClasspathSnapshotter classpathSnapshotter;
+    private final boolean classpathChanged;
+    private final String fullRebuildCause;
+    private final Map<String, File> modifiedSources;
+    private final Set<String> removedSources;
+
+    /**
+     * @param delegate the compiler used for incremental compilations, does not touch existing outputs
+     * @param cleaningCompiler the compiler used for full recompilations, removes all previous outputs
+     * @param previousCompilationDataFile where the source to class mapping is kept between compilations
+     * @param classDependencyDataFile where the analysis of the compiled classes is kept between compilations
+     * @param classpathSnapshotFile where the snapshot of the compile classpath is kept between compilations
+     * @param classpathSnapshotter takes and compares the ABI snapshots of the compile classpath
+     * @param classpathChanged whether some entry of the compile classpath has changed since the previous compilation
+     * @param fullRebuildCause why a full recompilation is required, or {@code null} if an incremental compilation is possible
+     * @param modifiedSources added or modified source files, keyed by their path relative to the source root
+     * @param removedSources paths of removed source files, relative to the source root
+     */
+    public IncrementalKievCompiler(Compiler<KievJavaJointCompileSpec> delegate, Compiler<KievJavaJointCompileSpec> cleaningCompiler, File previousCompilationDataFile, File classDependencyDataFile, File classpathSnapshotFile, KievClasspathSnapshotter classpathSnapshotter, boolean classpathChanged, @Nullable String fullRebuildCause, Map<String, File> modifiedSources, Set<String> removedSources) {
+        this.delegate = delegate;
+        this.cleaningCompiler = cleaningCompiler;
+        this.previousCompilationDataFile = previousCompilationDataFile;
+        this.classDependencyDataFile = classDependencyDataFile;
+        this.classpathSnapshotFile = classpathSnapshotFile;
+        this.classpathSnapshotter = classpathSnapshotter;
+        this.classpathChanged = classpathChanged;
+        this.fullRebuildCause = fullRebuildCause;
+        this.modifiedSources = modifiedSources;
+        this.removedSources = removedSources;
+    }
+
+    @Override
+    public WorkResult execute(KievJavaJointCompileSpec spec) {
+        if (fullRebuildCause != null) {
+            return fullRecompilation(spec, fullRebuildCause);
+        }
+        KievCompilationData previous = KievCompilationData.read(previousCompilationDataFile);
+        KievClassDependencyData previousClasses = KievClassDependencyData.read(classDependencyDataFile);
+        KievClasspathSnapshotter.Snapshot classpathSnapshot = KievClasspathSnapshotter.Snapshot.read(classpathSnapshotFile);
+        if (previous == null || previousClasses == null || classpathSnapshot == null) {
+            return fullRecompilation(spec, "no previous compilation data");
+        }
+
+        // If this compilation fails, the next one must be a full recompilation
+        deleteCompilationData();
+
+        Set<String> changedClasspathClasses = Collections.emptySet();
+        if (classpathChanged) {
+            KievClasspathSnapshotter.Snapshot current = classpathSnapshotter.snapshot(spec.getCompileClasspath());
+            KievClasspathSnapshotter.Changes changes = classpathSnapshotter.diff(classpathSnapshot, current);
+            if (changes.getFullRebuildCause() != null) {
+                return fullRecompilation(spec, changes.getFullRebuildCause());
+            }
+            classpathSnapshot = current;
+            changedClasspathClasses = changes.getChangedClasses();
+            LOGGER.info("Kiev incremental compilation: {} class(es) on the compile classpath changed their ABI", changedClasspathClasses.size());
+        }
+
+        List<File> originalSourceFiles = new ArrayList<>();
+        spec.getSourceFiles().forEach(originalSourceFiles::add);
+        List<File> originalClasspath = spec.getCompileClasspath();
+        File destinationDir = spec.getDestinationDir();
+        ClassGraph graph = new ClassGraph(relativeSourcePaths(spec), previous.getSourceToClasses(), previousClasses.getClasses());
+
+        Map<String, KievClassAnalysis> removedClasses = graph.removeSources(removedSources, destinationDir);
+        if (hasConstants(removedClasses.values())) {
+            return restartAsFullRecompilation(spec, originalSourceFiles, originalClasspath, "a class declaring compile-time constants was removed");
+        }
+        Set<String> toCompile = new HashSet<>(modifiedSources.keySet());
+        toCompile.addAll(graph.dependentSources(removedClasses.keySet()));
+        toCompile.addAll(graph.dependentSources(changedClasspathClasses));
+
+        // previously compiled classes are resolved from the destination directory
+        List<File> classpath = new ArrayList<>();
+        classpath.add(destinationDir);
+        classpath.addAll(originalClasspath);
+        spec.setCompileClasspath(classpath);
+
+        boolean didWork = !removedSources.isEmpty();
+        boolean mappingComplete = true;
+        KievCompileMetrics metrics = new KievCompileMetrics();
+        Set<String> compiledSources = new HashSet<>();
+        int round = 0;
+        while (!toCompile.isEmpty()) {
+            toCompile.retainAll(graph.allSources.keySet());
+            compiledSources.addAll(toCompile);
+            if (++round > MAX_ROUNDS || compiledSources.size() > graph.allSources.size() / 2) {
+                return restartAsFullRecompilation(spec, originalSourceFiles, originalClasspath, compiledSources.size() + " of " + graph.allSources.size() + " source files need to be recompiled");
+            }
+
+            Map<String, KievClassAnalysis> before = graph.removeSources(toCompile, destinationDir);
+            List<File> sourceFiles = new ArrayList<>();
+            for (String source : toCompile) {
+                sourceFiles.add(graph.allSources.get(source));
+            }
+            LOGGER.info("Kiev incremental compilation round {}: recompiling {} of {} source file(s)", round, sourceFiles.size(), graph.allSources.size());
+            spec.setSourceFiles(sourceFiles);
+            WorkResult result = delegate.execute(spec);
+            didWork |= result.getDidWork();
+            KievCompileMetrics roundMetrics = KievCompileResult.metricsOf(result);
+            if (roundMetrics != null) {
+                metrics.add(roundMetrics);
+            }
+
+            long outputStarted = System.nanoTime();
+            // the classes of the recompiled sources were deleted, so every class unknown to the graph is new
+            Map<String, KievClassAnalysis> after = KievClassAnalyzer.analyzeDirectory(destinationDir, f -> !graph.classes.containsKey(classNameOf(destinationDir, f)));
+            mappingComplete &= graph.addClasses(after, sourceClassesMapping(result));
+
+            Set<String> changedClasses = new HashSet<>();
+            for (KievClassAnalysis old : before.values()) {
+                KievClassAnalysis current = after.get(old.getClassName());
+                if (current == null ? old.getConstantsHash() != 0 : current.getConstantsHash() != old.getConstantsHash()) {
+                    return restartAsFullRecompilation(spec, originalSourceFiles, originalClasspath, "a compile-time constant of " + old.getClassName() + " has changed");
+                }
+                if (current == null || current.getAbiHash() != old.getAbiHash()) {
+                    changedClasses.add(old.getClassName());
+                }
+            }
+            for (String cls : after.keySet()) {
+                if (!before.containsKey(cls)) {
+                    changedClasses.add(cls);
+                }
+            }
+            Set<String> next = graph.dependentSources(changedClasses);
+            next.removeAll(toCompile);
+            toCompile = next;
+            metrics.addOutputNanos(System.nanoTime() - outputStarted);
+        }
+
+        if (!mappingComplete) {
+            LOGGER.info("Some Kiev classes could not be mapped to their source files, the next compilation will be a full recompilation");
+        } else {
+            long outputStarted = System.nanoTime();
+            graph.write(previousCompilationDataFile, classDependencyDataFile);
+            classpathSnapshot.write(classpathSnapshotFile);
+            metrics.addOutputNanos(System.nanoTime() - outputStarted);
+        }
+        return didWork ? new KievCompileResult(metrics) : WorkResults.didWork(false);
+    }
+
+    private WorkResult restartAsFullRecompilation(KievJavaJointCompileSpec spec, List<File> sourceFiles, List<File> classpath, String cause) {
+        spec.setSourceFiles(sourceFiles);
+        spec.setCompileClasspath(classpath);
+        return fullRecompilation(spec, cause);
+    }
+
+    private WorkResult fullRecompilation(KievJavaJointCompileSpec spec, String cause) {
+        LOGGER.info("Full recompilation is required because {}.", cause);
+        deleteCompilationData();
+        WorkResult result = cleaningCompiler.execute(spec);
+
+        long outputStarted = System.nanoTime();
+        ClassGraph graph = new ClassGraph(relativeSourcePaths(spec), Collections.emptyMap(), Collections.emptyMap());
+        if (!graph.addClasses(KievClassAnalyzer.analyzeDirectory(spec.getDestinationDir(), f -> true), sourceClassesMapping(result))) {
+            LOGGER.info("Some Kiev classes could not be mapped to their source files, the next compilation will be a full recompilation");
+            return result;
+        }
+        graph.write(previousCompilationDataFile, classDependencyDataFile);
+        classpathSnapshotter.snapshot(spec.getCompileClasspath()).write(classpathSnapshotFile);
+        KievCompileMetrics metrics = KievCompileResult.metricsOf(result);
+        if (metrics != null) {
+            metrics.addOutputNanos(System.nanoTime() - outputStarted);
+        }
+        return result;
+    }
+
+    private void deleteCompilationData() {
+        previousCompilationDataFile.delete();
+        classDependencyDataFile.delete();
+        classpathSnapshotFile.delete();
+    }
+
+    private static boolean hasConstants(Collection<KievClassAnalysis> classes) {
+        for (KievClassAnalysis c : classes) {
+            if (c.getConstantsHash() != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Nullable
+    private static Map<String, Set<String>> sourceClassesMapping(WorkResult result) {
+        if (result instanceof ApiCompilerResult) {
+            Map<String, Set<String>> mapping = ((ApiCompilerResult) result).getSourceClassesMapping();
+            if (!mapping.isEmpty()) {
+                return mapping;
+            }
+        }
+        return null;
+    }
+
+    private static Map<String, File> relativeSourcePaths(KievJavaJointCompileSpec spec) {
+        CompilationSourceDirs sourceDirs = new CompilationSourceDirs(spec);
+        Map<String, File> sources = new HashMap<>();
+        for (File file : spec.getSourceFiles()) {
+            sourceDirs.relativize(file).ifPresent(path -> sources.put(path, file));
+        }
+        return sources;
+    }
+
+    private static String classNameOf(File destinationDir, File classFile) {
+        String path = destinationDir.toPath().relativize(classFile.toPath()).toString();
+        return path.substring(0, path.length() - ".class".length()).replace(File.separatorChar, '.');
+    }
+
+    /**
+     * Deletes the class files of the given classes, including their nested and synthetic classes.
+     */
+    static void deleteClasses(File destinationDir, Collection<String> classes) {
+        for (String cls : classes) {
+            String path = cls.replace('.', '/');
+            File classFile = new File(destinationDir, path + ".class");
+            File dir = classFile.getParentFile();
+            String prefix = path.substring(path.lastIndexOf('/') + 1) + "$";
+            classFile.delete();
+            File[] nested = dir.listFiles((d, name) -> name.startsWith(prefix) && name.endsWith(".class"));
+            if (nested != null) {
+                for (File f : nested) {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * The compiled classes, the sources they were compiled from and the references between them.
+     */
+    private static class ClassGraph {
+        private final Map<String, File> allSources;
+        private final Map<String, Set<String>> sourceToClasses = new HashMap<>();
+        private final Map<String, String> classToSource = new HashMap<>();
+        private final Map<String, KievClassAnalysis> classes;
+        private Map<String, List<String>> sourcesByFileName;
+
+        ClassGraph(Map<String, File> allSources, Map<String, Set<String>> sourceToClasses, Map<String, KievClassAnalysis> classes) {
+            this.allSources = allSources;
+            this.classes = new HashMap<>(classes);
+            for (Map.Entry<String, Set<String>> e : sourceToClasses.entrySet()) {
+                this.sourceToClasses.put(e.getKey(), new HashSet<>(e.getValue()));
+                for (String cls : e.getValue()) {
+                    classToSource.put(cls, e.getKey());
+                }
+            }
+        }
+
+        /**
+         * Removes the given sources and deletes their classes, returns the analysis of the removed classes.
+         */
+        Map<String, KievClassAnalysis> removeSources(Collection<String> sources, File destinationDir) {
+            Map<String, KievClassAnalysis> removed = new HashMap<>();
+            for (String source : sources) {
+                Set<String> sourceClasses = sourceToClasses.remove(source);
+                if (sourceClasses == null) {
+                    continue;
+                }
+                for (String cls : sourceClasses) {
+                    classToSource.remove(cls);
+                    KievClassAnalysis analysis = classes.remove(cls);
+                    if (analysis != null) {
+                        removed.put(cls, analysis);
+                    }
+                }
+                deleteClasses(destinationDir, sourceClasses);
+            }
+            return removed;
+        }
+
+        /**
+         * Adds newly compiled classes, returns {@code false} if the source of some class could not be determined.
+         */
+        boolean addClasses(Map<String, KievClassAnalysis> compiled, @Nullable Map<String, Set<String>> compilerMapping) {
+            if (compilerMapping != null) {
+                for (Map.Entry<String, Set<String>> e : compilerMapping.entrySet()) {
+                    for (String cls : e.getValue()) {
+                        classToSource.put(cls, e.getKey());
+                    }
+                }
+            }
+            boolean complete = true;
+            for (KievClassAnalysis analysis : compiled.values()) {
+                String cls = analysis.getClassName();
+                String source = classToSource.get(cls);
+                if (source == null) {
+                    source = classToSource.get(analysis.getTopLevelClassName());
+                }
+                if (source == null) {
+                    source = sourceFromAttribute(analysis);
+                }
+                classes.put(cls, analysis);
+                if (source == null) {
+                    LOGGER.info("Cannot determine the source file of Kiev class {}", cls);
+                    complete = false;
+                    continue;
+                }
+                classToSource.put(cls, source);
+                sourceToClasses.computeIfAbsent(source, s -> new HashSet<>()).add(cls);
+            }
+            return complete;
+        }
+
+        @Nullable
+        private String sourceFromAttribute(KievClassAnalysis analysis) {
+            String fileName = analysis.getSourceFileName();
+            if (fileName == null) {
+                return null;
+            }
+            String cls = analysis.getClassName();
+            int lastDot = cls.lastIndexOf('.');
+            String path = lastDot < 0 ? fileName : cls.substring(0, lastDot).replace('.', '/') + '/' + fileName;
+            if (allSources.containsKey(path)) {
+                return path;
+            }
+            // the source is not in the directory matching its package, accept an unambiguous file name
+            if (sourcesByFileName == null) {
+                sourcesByFileName = new HashMap<>();
+                for (String source : allSources.keySet()) {
+                    sourcesByFileName.computeIfAbsent(source.substring(source.lastIndexOf('/') + 1), s -> new ArrayList<>()).add(source);
+                }
+            }
+            List<String> candidates = sourcesByFileName.getOrDefault(fileName, Collections.emptyList());
+            return candidates.size() == 1 ? candidates.get(0) : null;
+        }
+
+        /**
+         * Returns the sources of all classes referencing one of the given classes.
+         */
+        Set<String> dependentSources(Set<String> changedClasses) {
+            Set<String> dependents = new HashSet<>();
+            if (changedClasses.isEmpty()) {
+                return dependents;
+            }
+            for (KievClassAnalysis analysis : classes.values()) {
+                String source = classToSource.get(analysis.getClassName());
+                if (source == null || dependents.contains(source)) {
+                    continue;
+                }
+                for (String dependency : analysis.getDependencies()) {
+                    if (changedClasses.contains(dependency)) {
+                        dependents.add(source);
+                        break;
+                    }
+                }
+            }
+            return dependents;
+        }
+
+        void write(File compilationDataFile, File classDependencyDataFile) {
+            new KievCompilationData(sourceToClasses).write(compilationDataFile);
+            new KievClassDependencyData(classes).write(classDependencyDataFile);
+        }
+    }
+}
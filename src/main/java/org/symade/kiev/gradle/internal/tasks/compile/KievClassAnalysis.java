@@ -0,0 +1,76 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import javax.annotation.Nullable;
+import java.util.Set;
+
+/**
+ * What incremental Kiev compilation needs to know about one compiled class.
+ */
+public class KievClassAnalysis {
+    private final String className;
+    private final String sourceFileName;
+    private final Set<String> dependencies;
+    private final long abiHash;
+    private final long constantsHash;
+
+    /**
+     * @param className the fully qualified binary name of the class, e.g. {@code a.b.Outer$Inner}
+     * @param sourceFileName the value of the {@code SourceFile} attribute, if present
+     * @param dependencies the fully qualified names of the classes referenced by this class
+     * @param abiHash a hash of the class members visible to other classes
+     * @param constantsHash a hash of the compile-time constants declared by the class, which other classes may inline,
+     * zero if the class declares no constants
+     */
+    public KievClassAnalysis(String className, @Nullable String sourceFileName, Set<String> dependencies, long abiHash, long constantsHash) {
+        this.className = className;
+        this.sourceFileName = sourceFileName;
+        this.dependencies = dependencies;
+        this.abiHash = abiHash;
+        this.constantsHash = constantsHash;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    @Nullable
+    public String getSourceFileName() {
+        return sourceFileName;
+    }
+
+    public Set<String> getDependencies() {
+        return dependencies;
+    }
+
+    public long getAbiHash() {
+        return abiHash;
+    }
+
+    public long getConstantsHash() {
+        return constantsHash;
+    }
+
+    /**
+     * The name of the top level class this class is nested in, or the name of this class itself.
+     */
+    public String getTopLevelClassName() {
+        int i = className.indexOf('$', className.lastIndexOf('.') + 1);
+        return i > 0 ? className.substring(0, i) : className;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.objectweb.asm.*;
+import org.objectweb.asm.signature.SignatureReader;
+import org.objectweb.asm.signature.SignatureVisitor;
+import org.symade.kiev.gradle.api.plugins.KievPlugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Extracts class references and ABI hashes from compiled classes.
+ *
+ * <p>References are taken from the constant pool and the member descriptors and signatures, which covers every
+ * class the compiled code links against. Compile-time constants inlined by the compiler are not visible this way,
+ * so changes of constant values are tracked separately, see {@link KievClassAnalysis#getConstantsHash()}.
+ */
+public class KievClassAnalyzer {
+    private static final Logger LOGGER = Logging.getLogger(KievPlugin.class);
+
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+
+    /**
+     * Analyzes all class files in the given directory which match the filter.
+     */
+    public static Map<String, KievClassAnalysis> analyzeDirectory(File classesDir, Predicate<File> filter) {
+        Map<String, KievClassAnalysis> result = new HashMap<>();
+        if (!classesDir.isDirectory()) {
+            return result;
+        }
+        Deque<File> dirs = new ArrayDeque<>();
+        dirs.add(classesDir);
+        while (!dirs.isEmpty()) {
+            File[] files = dirs.poll().listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File f : files) {
+                if (f.isDirectory()) {
+                    dirs.add(f);
+                } else if (f.getName().endsWith(".class") && filter.test(f)) {
+                    try {
+                        KievClassAnalysis analysis = analyze(Files.readAllBytes(f.toPath()));
+                        result.put(analysis.getClassName(), analysis);
+                    } catch (IOException | RuntimeException e) {
+                        LOGGER.info("Cannot analyze class file {}", f, e);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    public static KievClassAnalysis analyze(byte[] classFile) {
+        ClassReader reader = new ClassReader(classFile);
+        Set<String> dependencies = new HashSet<>();
+        collectConstantPoolReferences(reader, dependencies);
+        AnalyzingVisitor visitor = new AnalyzingVisitor(dependencies);
+        reader.accept(visitor, ClassReader.SKIP_CODE | ClassReader.SKIP_FRAMES);
+        String className = toClassName(reader.getClassName());
+        dependencies.remove(className);
+        return new KievClassAnalysis(className, visitor.sourceFile, dependencies, visitor.abi.getLong(), visitor.hasConstants ? visitor.constants.getLong() : 0);
+    }
+
+    private static void collectConstantPoolReferences(ClassReader reader, Set<String> dependencies) {
+        char[] buffer = new char[reader.getMaxStringLength()];
+        for (int i = 1; i < reader.getItemCount(); i++) {
+            int offset = reader.getItem(i);
+            if (offset == 0) {
+                // the second slot of a long or double constant
+                continue;
+            }
+            switch (reader.readByte(offset - 1)) {
+                case CONSTANT_CLASS:
+                    addInternalName(reader.readUTF8(offset, buffer), dependencies);
+                    break;
+                case CONSTANT_NAME_AND_TYPE:
+                    addDescriptor(reader.readUTF8(offset + 2, buffer), dependencies);
+                    break;
+                case CONSTANT_METHOD_TYPE:
+                    addDescriptor(reader.readUTF8(offset, buffer), dependencies);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static void addInternalName(String internalName, Set<String> dependencies) {
+        if (internalName.startsWith("[")) {
+            addType(Type.getType(internalName), dependencies);
+        } else if (!internalName.startsWith("java/")) {
+            dependencies.add(toClassName(internalName));
+        }
+    }
+
+    private static void addDescriptor(String descriptor, Set<String> dependencies) {
+        if (descriptor.startsWith("(")) {
+            Type methodType = Type.getMethodType(descriptor);
+            addType(methodType.getReturnType(), dependencies);
+            for (Type arg : methodType.getArgumentTypes()) {
+                addType(arg, dependencies);
+            }
+        } else {
+            addType(Type.getType(descriptor), dependencies);
+        }
+    }
+
+    private static void addType(Type type, Set<String> dependencies) {
+        if (type.getSort() == Type.ARRAY) {
+            type = type.getElementType();
+        }
+        if (type.getSort() == Type.OBJECT) {
+            addInternalName(type.getInternalName(), dependencies);
+        }
+    }
+
+    private static void addSignature(String signature, Set<String> dependencies) {
+        if (signature == null) {
+            return;
+        }
+        new SignatureReader(signature).accept(new SignatureVisitor(Opcodes.ASM9) {
+            @Override
+            public void visitClassType(String name) {
+                addInternalName(name, dependencies);
+            }
+        });
+    }
+
+    private static String toClassName(String internalName) {
+        return internalName.replace('/', '.');
+    }
+
+    private static class AnalyzingVisitor extends ClassVisitor {
+        private final Set<String> dependencies;
+        private final Hasher abi = new Hasher();
+        private final Hasher constants = new Hasher();
+        private String sourceFile;
+        private boolean hasConstants;
+
+        AnalyzingVisitor(Set<String> dependencies) {
+            super(Opcodes.ASM9);
+            this.dependencies = dependencies;
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            abi.put(access & ~Opcodes.ACC_SUPER).put(name).put(signature).put(superName);
+            if (interfaces != null) {
+                for (String i : interfaces) {
+                    abi.put(i);
+                }
+            }
+            addSignature(signature, dependencies);
+        }
+
+        @Override
+        public void visitSource(String source, String debug) {
+            this.sourceFile = source;
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+            abi.put("@").put(descriptor);
+            addDescriptor(descriptor, dependencies);
+            return null;
+        }
+
+        @Override
+        public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+            addDescriptor(descriptor, dependencies);
+            addSignature(signature, dependencies);
+            if ((access & Opcodes.ACC_PRIVATE) == 0) {
+                abi.put("F").put(access).put(name).put(descriptor).put(signature).put(value);
+            }
+            if (value != null && (access & (Opcodes.ACC_STATIC | Opcodes.ACC_FINAL)) == (Opcodes.ACC_STATIC | Opcodes.ACC_FINAL)) {
+                constants.put(name).put(value);
+                hasConstants = true;
+            }
+            return null;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            addDescriptor(descriptor, dependencies);
+            addSignature(signature, dependencies);
+            if ((access & Opcodes.ACC_PRIVATE) == 0 && !"<clinit>".equals(name)) {
+                abi.put("M").put(access).put(name).put(descriptor).put(signature);
+                if (exceptions != null) {
+                    for (String e : exceptions) {
+                        abi.put(e);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class Hasher {
+        private final MessageDigest digest;
+
+        Hasher() {
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        Hasher put(Object value) {
+            digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            return this;
+        }
+
+        long getLong() {
+            byte[] bytes = digest.digest();
+            long result = 0;
+            for (int i = 0; i < 8; i++) {
+                result = (result << 8) | (bytes[i] & 0xff);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.symade.kiev.gradle.api.plugins.KievPlugin;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.*;
+
+/**
+ * The analysis of all classes produced by the previous Kiev compilation, keyed by class name.
+ * Class names are written once into a string table and referenced by index, which keeps the file compact.
+ */
+public class KievClassDependencyData {
+    private static final Logger LOGGER = Logging.getLogger(KievPlugin.class);
+    private static final int VERSION = 1;
+
+    private final Map<String, KievClassAnalysis> classes;
+
+    public KievClassDependencyData(Map<String, KievClassAnalysis> classes) {
+        this.classes = classes;
+    }
+
+    public Map<String, KievClassAnalysis> getClasses() {
+        return classes;
+    }
+
+    /**
+     * Reads the class dependency data, returns {@code null} if there is no data or it cannot be read.
+     */
+    @Nullable
+    public static KievClassDependencyData read(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            String[] names = new String[in.readInt()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = in.readUTF();
+            }
+            int classCount = in.readInt();
+            Map<String, KievClassAnalysis> classes = new HashMap<>(classCount * 2);
+            for (int i = 0; i < classCount; i++) {
+                String className = names[in.readInt()];
+                String sourceFile = in.readBoolean() ? in.readUTF() : null;
+                long abiHash = in.readLong();
+                long constantsHash = in.readLong();
+                int dependencyCount = in.readInt();
+                Set<String> dependencies = new HashSet<>(dependencyCount * 2);
+                for (int j = 0; j < dependencyCount; j++) {
+                    dependencies.add(names[in.readInt()]);
+                }
+                classes.put(className, new KievClassAnalysis(className, sourceFile, dependencies, abiHash, constantsHash));
+            }
+            return new KievClassDependencyData(classes);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.info("Cannot read previous Kiev class dependency data from {}", file, e);
+            return null;
+        }
+    }
+
+    public void write(File file) {
+        Map<String, Integer> index = new LinkedHashMap<>();
+        for (KievClassAnalysis c : classes.values()) {
+            index.putIfAbsent(c.getClassName(), index.size());
+            for (String d : c.getDependencies()) {
+                index.putIfAbsent(d, index.size());
+            }
+        }
+        file.getParentFile().mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(VERSION);
+            out.writeInt(index.size());
+            for (String name : index.keySet()) {
+                out.writeUTF(name);
+            }
+            out.writeInt(classes.size());
+            for (KievClassAnalysis c : classes.values()) {
+                out.writeInt(index.get(c.getClassName()));
+                out.writeBoolean(c.getSourceFileName() != null);
+                if (c.getSourceFileName() != null) {
+                    out.writeUTF(c.getSourceFileName());
+                }
+                out.writeLong(c.getAbiHash());
+                out.writeLong(c.getConstantsHash());
+                out.writeInt(c.getDependencies().size());
+                for (String d : c.getDependencies()) {
+                    out.writeInt(index.get(d));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write Kiev class dependency data to " + file, e);
+        }
+    }
+}
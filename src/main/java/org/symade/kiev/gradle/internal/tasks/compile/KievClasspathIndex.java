@@ -0,0 +1,257 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.symade.kiev.gradle.api.plugins.KievPlugin;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexes of the classes in the jars of a compile classpath, for Kiev compilers which can look up classes
+ * without parsing the central directory of every jar themselves.
+ *
+ * <p>The index of a jar is kept in a cache directory, keyed by the content hash of the jar, and handed to the
+ * compiler as a read-only memory-mapped {@link ByteBuffer}. An index is big-endian and consists of
+ * <ul>
+ *     <li>a header of four ints: {@link #MAGIC}, {@link #VERSION}, the number of classes and zero;</li>
+ *     <li>one record per class, sorted by the UTF-8 bytes of the class name: the offset and the length of the name
+ *     in the name area (ints), the offset of the local file header in the jar (long), the compressed size, the size
+ *     and the compression method of the entry (ints);</li>
+ *     <li>the name area, holding the class names, e.g. {@code java/lang/String}, in UTF-8.</li>
+ * </ul>
+ * Directories and jars which cannot be indexed, e.g. zip64 archives, are left out; the compiler reads them as usual.
+ */
+public class KievClasspathIndex {
+    private static final Logger LOGGER = Logging.getLogger(KievPlugin.class);
+    public static final int MAGIC = 0x4B434958;
+    public static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 28;
+    private static final long MAX_UNUSED_AGE = TimeUnit.DAYS.toMillis(30);
+    private static final Set<File> CLEANED_CACHE_DIRS = ConcurrentHashMap.newKeySet();
+    // shared by all compilations in this JVM, so unchanged jars are hashed once per daemon
+    private static final KievFileHasher FILE_HASHER = new KievFileHasher();
+
+    private final File cacheDir;
+
+    public KievClasspathIndex(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Returns the indexes of the jars of the given classpath, keyed by the absolute path of the jar,
+     * in classpath order. Indexes missing in the cache are built first.
+     */
+    public Map<String, ByteBuffer> index(List<File> classpath) {
+        cleanupOnce();
+        Map<String, ByteBuffer> indexes = new LinkedHashMap<>();
+        for (File entry : classpath) {
+            if (!entry.isFile()) {
+                continue;
+            }
+            File indexFile = new File(cacheDir, FILE_HASHER.hash(entry) + ".idx");
+            if (indexFile.isFile()) {
+                indexFile.setLastModified(System.currentTimeMillis());
+            } else if (!build(entry, indexFile)) {
+                continue;
+            }
+            ByteBuffer index = map(indexFile);
+            if (index != null) {
+                indexes.put(entry.getAbsolutePath(), index);
+            }
+        }
+        return indexes;
+    }
+
+    @Nullable
+    private static ByteBuffer map(File indexFile) {
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                return null;
+            }
+            return buffer.asReadOnlyBuffer();
+        } catch (IOException e) {
+            LOGGER.info("Cannot map classpath index {}", indexFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Builds the index of a jar, returns {@code false} if the jar cannot be indexed.
+     */
+    static boolean build(File jar, File indexFile) {
+        List<Record> records;
+        try {
+            records = readCentralDirectory(jar);
+        } catch (IOException e) {
+            LOGGER.debug("Cannot read classpath entry {}", jar, e);
+            return false;
+        }
+        if (records == null) {
+            return false;
+        }
+        records.sort((a, b) -> Arrays.compareUnsigned(a.name, b.name));
+
+        indexFile.getParentFile().mkdirs();
+        try {
+            // written to a temporary file first, since builds running in parallel may share the cache
+            File tmp = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getParentFile());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(records.size());
+                out.writeInt(0);
+                int nameOffset = 0;
+                for (Record r : records) {
+                    out.writeInt(nameOffset);
+                    out.writeInt(r.name.length);
+                    out.writeLong(r.headerOffset);
+                    out.writeInt(r.compressedSize);
+                    out.writeInt(r.size);
+                    out.writeInt(r.method);
+                    nameOffset += r.name.length;
+                }
+                for (Record r : records) {
+                    out.write(r.name);
+                }
+            }
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            LOGGER.info("Cannot write classpath index {}", indexFile, e);
+            return false;
+        }
+    }
+
+    /**
+     * Reads the class entries from the central directory of a jar, returns {@code null} if it is not a jar
+     * or uses zip64 extensions.
+     */
+    @Nullable
+    private static List<Record> readCentralDirectory(File jar) throws IOException {
+        try (FileChannel channel = FileChannel.open(jar.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 22) {
+                return null;
+            }
+            // the end of central directory record is at the end of the file, followed by a comment of up to 64k
+            int tailSize = (int) Math.min(size, 22 + 0xFFFF);
+            ByteBuffer tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+            while (tail.hasRemaining() && channel.read(tail, size - tailSize + tail.position()) > 0) {
+                // read the whole tail
+            }
+            int eocd = -1;
+            for (int i = tailSize - 22; i >= 0; i--) {
+                if (tail.getInt(i) == 0x06054b50) {
+                    eocd = i;
+                    break;
+                }
+            }
+            if (eocd < 0) {
+                return null;
+            }
+            int entries = Short.toUnsignedInt(tail.getShort(eocd + 10));
+            long cdSize = Integer.toUnsignedLong(tail.getInt(eocd + 12));
+            long cdOffset = Integer.toUnsignedLong(tail.getInt(eocd + 16));
+            if (entries == 0xFFFF || cdSize == 0xFFFFFFFFL || cdOffset == 0xFFFFFFFFL || cdOffset + cdSize > size) {
+                return null;
+            }
+
+            ByteBuffer cd = channel.map(FileChannel.MapMode.READ_ONLY, cdOffset, cdSize).order(ByteOrder.LITTLE_ENDIAN);
+            List<Record> records = new ArrayList<>();
+            int pos = 0;
+            for (int i = 0; i < entries; i++) {
+                if (pos + 46 > cdSize || cd.getInt(pos) != 0x02014b50) {
+                    return null;
+                }
+                int method = Short.toUnsignedInt(cd.getShort(pos + 10));
+                long compressedSize = Integer.toUnsignedLong(cd.getInt(pos + 20));
+                long entrySize = Integer.toUnsignedLong(cd.getInt(pos + 24));
+                int nameLength = Short.toUnsignedInt(cd.getShort(pos + 28));
+                int extraLength = Short.toUnsignedInt(cd.getShort(pos + 30));
+                int commentLength = Short.toUnsignedInt(cd.getShort(pos + 32));
+                long headerOffset = Integer.toUnsignedLong(cd.getInt(pos + 42));
+                if (compressedSize == 0xFFFFFFFFL || entrySize == 0xFFFFFFFFL || headerOffset == 0xFFFFFFFFL) {
+                    return null;
+                }
+                byte[] name = new byte[nameLength];
+                cd.position(pos + 46);
+                cd.get(name);
+                pos += 46 + nameLength + extraLength + commentLength;
+
+                String entryName = new String(name, StandardCharsets.UTF_8);
+                if (!entryName.endsWith(".class") || entryName.startsWith("META-INF/") || entryName.endsWith("module-info.class")) {
+                    continue;
+                }
+                byte[] className = entryName.substring(0, entryName.length() - ".class".length()).getBytes(StandardCharsets.UTF_8);
+                records.add(new Record(className, headerOffset, (int) compressedSize, (int) entrySize, method));
+            }
+            return records;
+        }
+    }
+
+    /**
+     * Removes the indexes not used for a long time, once per cache directory and JVM.
+     */
+    private void cleanupOnce() {
+        if (!CLEANED_CACHE_DIRS.add(cacheDir)) {
+            return;
+        }
+        File[] files = cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File f : files) {
+            if (now - f.lastModified() > MAX_UNUSED_AGE) {
+                f.delete();
+            }
+        }
+    }
+
+    private static final class Record {
+        final byte[] name;
+        final long headerOffset;
+        final int compressedSize;
+        final int size;
+        final int method;
+
+        Record(byte[] name, long headerOffset, int compressedSize, int size, int method) {
+            this.name = name;
+            this.headerOffset = headerOffset;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.method = method;
+        }
+    }
+}
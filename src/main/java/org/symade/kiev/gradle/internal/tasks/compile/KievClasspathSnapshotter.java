@@ -0,0 +1,283 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.symade.kiev.gradle.api.plugins.KievPlugin;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Takes ABI snapshots of the compile classpath, so a change of a classpath entry only recompiles the
+ * Kiev sources referencing the classes whose ABI has changed.
+ *
+ * <p>The ABI of a classpath entry is kept in a cache directory, keyed by the content hash of the entry,
+ * so every version of a jar is analyzed once and shared by all Kiev compile tasks using it. The snapshot
+ * of a classpath only lists the names of its entries with their content hashes. Entries are not identified
+ * by their absolute paths, so a snapshot restored from the build cache on another machine or in another
+ * checkout directory is still comparable, the same way the compile classpath is normalized.
+ */
+public class KievClasspathSnapshotter {
+    private static final Logger LOGGER = Logging.getLogger(KievPlugin.class);
+    private static final int VERSION = 2;
+    private static final long MAX_UNUSED_AGE = TimeUnit.DAYS.toMillis(30);
+    private static final Set<File> CLEANED_CACHE_DIRS = ConcurrentHashMap.newKeySet();
+
+    private final File cacheDir;
+    private final KievFileHasher fileHasher = new KievFileHasher();
+
+    public KievClasspathSnapshotter(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Snapshots the given classpath, analyzing the entries which are not in the cache yet.
+     */
+    public Snapshot snapshot(List<File> classpath) {
+        cleanupOnce();
+        List<String> names = new ArrayList<>();
+        List<String> hashes = new ArrayList<>();
+        for (File entry : classpath) {
+            String hash = fileHasher.hash(entry);
+            File abiFile = abiFile(hash);
+            if (abiFile.isFile()) {
+                abiFile.setLastModified(System.currentTimeMillis());
+            } else {
+                writeAbi(abiFile, analyzeEntry(entry));
+            }
+            names.add(entry.getName());
+            hashes.add(hash);
+        }
+        return new Snapshot(names, hashes);
+    }
+
+    /**
+     * Compares two snapshots of the same classpath.
+     */
+    public Changes diff(Snapshot previous, Snapshot current) {
+        if (!previous.names.equals(current.names)) {
+            return Changes.fullRebuild("the entries of the compile classpath have changed");
+        }
+        Set<String> changedClasses = new HashSet<>();
+        for (int i = 0; i < current.hashes.size(); i++) {
+            if (previous.hashes.get(i).equals(current.hashes.get(i))) {
+                continue;
+            }
+            Map<String, long[]> before = readAbi(abiFile(previous.hashes.get(i)));
+            Map<String, long[]> after = readAbi(abiFile(current.hashes.get(i)));
+            if (before == null || after == null) {
+                return Changes.fullRebuild("no ABI snapshot of " + current.names.get(i) + " is available");
+            }
+            for (Map.Entry<String, long[]> e : before.entrySet()) {
+                long[] now = after.get(e.getKey());
+                if (now == null ? e.getValue()[1] != 0 : now[1] != e.getValue()[1]) {
+                    return Changes.fullRebuild("a compile-time constant of " + e.getKey() + " in " + current.names.get(i) + " has changed");
+                }
+                if (now == null || now[0] != e.getValue()[0]) {
+                    changedClasses.add(e.getKey());
+                }
+            }
+            for (String cls : after.keySet()) {
+                if (!before.containsKey(cls)) {
+                    changedClasses.add(cls);
+                }
+            }
+        }
+        return new Changes(null, changedClasses);
+    }
+
+    private File abiFile(String hash) {
+        return new File(cacheDir, hash + ".bin");
+    }
+
+    private static Map<String, long[]> analyzeEntry(File entry) {
+        Map<String, long[]> abi = new HashMap<>();
+        if (entry.isDirectory()) {
+            for (KievClassAnalysis c : KievClassAnalyzer.analyzeDirectory(entry, f -> true).values()) {
+                abi.put(c.getClassName(), new long[]{c.getAbiHash(), c.getConstantsHash()});
+            }
+        } else if (entry.isFile()) {
+            try (ZipFile zip = new ZipFile(entry)) {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry e = entries.nextElement();
+                    if (e.isDirectory() || !e.getName().endsWith(".class") || e.getName().startsWith("META-INF/") || e.getName().endsWith("module-info.class")) {
+                        continue;
+                    }
+                    try (InputStream in = zip.getInputStream(e)) {
+                        KievClassAnalysis c = KievClassAnalyzer.analyze(in.readAllBytes());
+                        abi.put(c.getClassName(), new long[]{c.getAbiHash(), c.getConstantsHash()});
+                    } catch (RuntimeException ex) {
+                        LOGGER.info("Cannot analyze {} in {}", e.getName(), entry, ex);
+                    }
+                }
+            } catch (IOException e) {
+                // not a jar, e.g. a resource file on the classpath, it has no ABI
+                LOGGER.debug("Cannot read classpath entry {}", entry, e);
+            }
+        }
+        return abi;
+    }
+
+    private static void writeAbi(File file, Map<String, long[]> abi) {
+        file.getParentFile().mkdirs();
+        try {
+            // written to a temporary file first, since builds running in parallel may share the cache
+            File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(VERSION);
+                out.writeInt(abi.size());
+                for (Map.Entry<String, long[]> e : abi.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeLong(e.getValue()[0]);
+                    out.writeLong(e.getValue()[1]);
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.info("Cannot write classpath ABI snapshot {}", file, e);
+        }
+    }
+
+    @Nullable
+    private static Map<String, long[]> readAbi(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            int count = in.readInt();
+            Map<String, long[]> abi = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                abi.put(in.readUTF(), new long[]{in.readLong(), in.readLong()});
+            }
+            return abi;
+        } catch (IOException e) {
+            LOGGER.info("Cannot read classpath ABI snapshot {}", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Removes the ABI snapshots not used for a long time, once per cache directory and JVM.
+     */
+    private void cleanupOnce() {
+        if (!CLEANED_CACHE_DIRS.add(cacheDir)) {
+            return;
+        }
+        File[] files = cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File f : files) {
+            if (now - f.lastModified() > MAX_UNUSED_AGE) {
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * The names of the entries of a classpath with their content hashes.
+     */
+    public static class Snapshot {
+        private final List<String> names;
+        private final List<String> hashes;
+
+        Snapshot(List<String> names, List<String> hashes) {
+            this.names = names;
+            this.hashes = hashes;
+        }
+
+        /**
+         * Reads the snapshot, returns {@code null} if there is no snapshot or it cannot be read.
+         */
+        @Nullable
+        public static Snapshot read(File file) {
+            if (!file.isFile()) {
+                return null;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != VERSION) {
+                    return null;
+                }
+                int count = in.readInt();
+                List<String> names = new ArrayList<>(count);
+                List<String> hashes = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    names.add(in.readUTF());
+                    hashes.add(in.readUTF());
+                }
+                return new Snapshot(names, hashes);
+            } catch (IOException e) {
+                LOGGER.info("Cannot read previous classpath snapshot from {}", file, e);
+                return null;
+            }
+        }
+
+        public void write(File file) {
+            file.getParentFile().mkdirs();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                out.writeInt(VERSION);
+                out.writeInt(names.size());
+                for (int i = 0; i < names.size(); i++) {
+                    out.writeUTF(names.get(i));
+                    out.writeUTF(hashes.get(i));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot write classpath snapshot to " + file, e);
+            }
+        }
+    }
+
+    /**
+     * The classes whose ABI differs between two classpath snapshots, or why they cannot be determined.
+     */
+    public static class Changes {
+        private final String fullRebuildCause;
+        private final Set<String> changedClasses;
+
+        Changes(@Nullable String fullRebuildCause, Set<String> changedClasses) {
+            this.fullRebuildCause = fullRebuildCause;
+            this.changedClasses = changedClasses;
+        }
+
+        static Changes fullRebuild(String cause) {
+            return new Changes(cause, Collections.emptySet());
+        }
+
+        @Nullable
+        public String getFullRebuildCause() {
+            return fullRebuildCause;
+        }
+
+        public Set<String> getChangedClasses() {
+            return changedClasses;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.symade.kiev.gradle.api.plugins.KievPlugin;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.*;
+
+/**
+ * The result of a previous Kiev compilation, which is needed for the next incremental compilation.
+ * Maps source files, relative to their source root, to the fully qualified names of the classes compiled from them.
+ */
+public class KievCompilationData {
+    private static final Logger LOGGER = Logging.getLogger(KievPlugin.class);
+    private static final int VERSION = 1;
+
+    private final Map<String, Set<String>> sourceToClasses;
+
+    public KievCompilationData(Map<String, Set<String>> sourceToClasses) {
+        this.sourceToClasses = sourceToClasses;
+    }
+
+    public Map<String, Set<String>> getSourceToClasses() {
+        return sourceToClasses;
+    }
+
+    /**
+     * Reads the compilation data, returns {@code null} if there is no data or it cannot be read.
+     */
+    @Nullable
+    public static KievCompilationData read(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            int sourceCount = in.readInt();
+            Map<String, Set<String>> sourceToClasses = new HashMap<>(sourceCount * 2);
+            for (int i = 0; i < sourceCount; i++) {
+                String source = in.readUTF();
+                int classCount = in.readInt();
+                Set<String> classes = new HashSet<>(classCount * 2);
+                for (int j = 0; j < classCount; j++) {
+                    classes.add(in.readUTF());
+                }
+                sourceToClasses.put(source, classes);
+            }
+            return new KievCompilationData(sourceToClasses);
+        } catch (IOException e) {
+            LOGGER.info("Cannot read previous Kiev compilation data from {}", file, e);
+            return null;
+        }
+    }
+
+    public void write(File file) {
+        file.getParentFile().mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(VERSION);
+            out.writeInt(sourceToClasses.size());
+            for (Map.Entry<String, Set<String>> e : new TreeMap<>(sourceToClasses).entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue().size());
+                for (String cls : new TreeSet<>(e.getValue())) {
+                    out.writeUTF(cls);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write Kiev compilation data to " + file, e);
+        }
+    }
+}
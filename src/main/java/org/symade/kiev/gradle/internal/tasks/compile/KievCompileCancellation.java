@@ -0,0 +1,109 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import org.gradle.api.BuildCancelledException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.initialization.BuildCancellationToken;
+import org.symade.kiev.gradle.api.plugins.KievPlugin;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Stops a running in-process Kiev compiler when the build is cancelled. The compiler's {@code cancel()} method
+ * is called if it has one, and the compiling thread is interrupted for compilers which check for interrupts.
+ *
+ * <p>Forked compilations need no such hook, Gradle stops the worker daemons of a cancelled build.
+ */
+final class KievCompileCancellation implements AutoCloseable {
+    private static final Logger LOGGER = Logging.getLogger(KievPlugin.class);
+
+    @Nullable
+    private final BuildCancellationToken token;
+    private final Object kievCompiler;
+    private final Thread thread;
+    private final Runnable callback = this::cancel;
+    private boolean cancelled;
+    private boolean closed;
+
+    private KievCompileCancellation(@Nullable BuildCancellationToken token, Object kievCompiler, Thread thread) {
+        this.token = token;
+        this.kievCompiler = kievCompiler;
+        this.thread = thread;
+    }
+
+    /**
+     * Watches the token while the current thread runs the given compiler, until the returned cancellation is closed.
+     */
+    static KievCompileCancellation register(@Nullable BuildCancellationToken token, Object kievCompiler) {
+        KievCompileCancellation cancellation = new KievCompileCancellation(token, kievCompiler, Thread.currentThread());
+        if (token != null && token.addCallback(cancellation.callback)) {
+            // cancelled before the compilation started, nothing to stop
+            synchronized (cancellation) {
+                cancellation.cancelled = true;
+            }
+        }
+        return cancellation;
+    }
+
+    synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Throws if the build has been cancelled.
+     */
+    void throwIfCancelled() {
+        if (isCancelled()) {
+            throw new BuildCancelledException("Kiev compilation was cancelled");
+        }
+    }
+
+    private synchronized void cancel() {
+        cancelled = true;
+        if (closed) {
+            return;
+        }
+        LOGGER.lifecycle("Cancelling Kiev compilation");
+        try {
+            kievCompiler.getClass().getMethod("cancel").invoke(kievCompiler);
+        } catch (NoSuchMethodException e) {
+            // the compiler can only be interrupted
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            LOGGER.debug("Cannot cancel kiev.Compiler", e);
+        }
+        thread.interrupt();
+    }
+
+    @Override
+    public void close() {
+        boolean wasCancelled;
+        synchronized (this) {
+            closed = true;
+            wasCancelled = cancelled;
+        }
+        if (token != null) {
+            token.removeCallback(callback);
+        }
+        if (wasCancelled) {
+            // the interrupt was meant for the compiler, do not leave it to the reused worker thread
+            Thread.interrupted();
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import java.io.Serializable;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Locale;
+
+/**
+ * Timings and memory usage of a Kiev compilation.
+ *
+ * <p>A compilation may consist of several compiler runs, e.g. incremental rounds or parallel partitions;
+ * their metrics are combined with {@link #add(KievCompileMetrics)}. Heap and GC figures are those of the
+ * JVM running the compiler, which is the worker daemon when the compiler is forked.
+ */
+public class KievCompileMetrics implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String compilerVersion;
+    private int compilerRuns;
+    private int sourceFiles;
+    private int classesEmitted;
+    private long classLoaderNanos;
+    private long instantiationNanos;
+    private long compileNanos;
+    private long outputNanos;
+    private long peakHeapBytes;
+    private long maxHeapBytes;
+    private long gcCount;
+    private long gcMillis;
+
+    /**
+     * The name of the Kiev compiler jar, which identifies the compiler version.
+     */
+    public String getCompilerVersion() {
+        return compilerVersion;
+    }
+
+    public void setCompilerVersion(String compilerVersion) {
+        this.compilerVersion = compilerVersion;
+    }
+
+    public int getCompilerRuns() {
+        return compilerRuns;
+    }
+
+    public int getSourceFiles() {
+        return sourceFiles;
+    }
+
+    public int getClassesEmitted() {
+        return classesEmitted;
+    }
+
+    /**
+     * Time spent to obtain the compiler class loader.
+     */
+    public long getClassLoaderNanos() {
+        return classLoaderNanos;
+    }
+
+    /**
+     * Time spent to load and instantiate {@code kiev.Compiler}.
+     */
+    public long getInstantiationNanos() {
+        return instantiationNanos;
+    }
+
+    /**
+     * Time spent in {@code kiev.Compiler.run}, which includes writing the class files.
+     */
+    public long getCompileNanos() {
+        return compileNanos;
+    }
+
+    /**
+     * Time spent by the plugin processing the compiler output, e.g. analyzing classes for incremental compilation.
+     */
+    public long getOutputNanos() {
+        return outputNanos;
+    }
+
+    /**
+     * The peak heap usage of the JVM running the compiler, zero when it was not measured, see {@link #startJvmUsage(boolean)}.
+     */
+    public long getPeakHeapBytes() {
+        return peakHeapBytes;
+    }
+
+    /**
+     * The maximum heap size of the JVM running the compiler.
+     */
+    public long getMaxHeapBytes() {
+        return maxHeapBytes;
+    }
+
+    public long getGcCount() {
+        return gcCount;
+    }
+
+    public long getGcMillis() {
+        return gcMillis;
+    }
+
+    public double getFilesPerSecond() {
+        return compileNanos == 0 ? 0 : sourceFiles * 1e9 / compileNanos;
+    }
+
+    public void recordCompilerRun(int sourceFiles, int classesEmitted) {
+        this.compilerRuns++;
+        this.sourceFiles += sourceFiles;
+        this.classesEmitted += classesEmitted;
+    }
+
+    public void addClassLoaderNanos(long nanos) {
+        this.classLoaderNanos += nanos;
+    }
+
+    public void addInstantiationNanos(long nanos) {
+        this.instantiationNanos += nanos;
+    }
+
+    public void addCompileNanos(long nanos) {
+        this.compileNanos += nanos;
+    }
+
+    public void addOutputNanos(long nanos) {
+        this.outputNanos += nanos;
+    }
+
+    /**
+     * Combines the metrics of another compiler run into these.
+     */
+    public void add(KievCompileMetrics other) {
+        if (compilerVersion == null) {
+            compilerVersion = other.compilerVersion;
+        }
+        compilerRuns += other.compilerRuns;
+        sourceFiles += other.sourceFiles;
+        classesEmitted += other.classesEmitted;
+        classLoaderNanos += other.classLoaderNanos;
+        instantiationNanos += other.instantiationNanos;
+        compileNanos += other.compileNanos;
+        outputNanos += other.outputNanos;
+        peakHeapBytes = Math.max(peakHeapBytes, other.peakHeapBytes);
+        maxHeapBytes = Math.max(maxHeapBytes, other.maxHeapBytes);
+        gcCount += other.gcCount;
+        gcMillis += other.gcMillis;
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{\n");
+        sb.append("  \"compilerVersion\": ").append(compilerVersion == null ? "null" : '"' + escape(compilerVersion) + '"').append(",\n");
+        sb.append("  \"compilerRuns\": ").append(compilerRuns).append(",\n");
+        sb.append("  \"sourceFiles\": ").append(sourceFiles).append(",\n");
+        sb.append("  \"classesEmitted\": ").append(classesEmitted).append(",\n");
+        sb.append("  \"classLoaderMillis\": ").append(millis(classLoaderNanos)).append(",\n");
+        sb.append("  \"instantiationMillis\": ").append(millis(instantiationNanos)).append(",\n");
+        sb.append("  \"compileMillis\": ").append(millis(compileNanos)).append(",\n");
+        sb.append("  \"outputMillis\": ").append(millis(outputNanos)).append(",\n");
+        sb.append("  \"filesPerSecond\": ").append(String.format(Locale.ROOT, "%.1f", getFilesPerSecond())).append(",\n");
+        sb.append("  \"peakHeapBytes\": ").append(peakHeapBytes > 0 ? String.valueOf(peakHeapBytes) : "null").append(",\n");
+        sb.append("  \"maxHeapBytes\": ").append(maxHeapBytes).append(",\n");
+        sb.append("  \"gcCount\": ").append(gcCount).append(",\n");
+        sb.append("  \"gcMillis\": ").append(gcMillis).append('\n');
+        return sb.append("}\n").toString();
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1_000_000;
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /**
+     * Starts measuring heap and GC usage of this JVM. Heap peaks are JVM-wide, so concurrent compilations
+     * in the same JVM see each other's usage.
+     *
+     * @param measurePeakHeap whether to measure the heap peak, which resets the peaks of the heap pools of the JVM; only
+     * done in compiler daemons, the peaks of the build process belong to others
+     */
+    public static JvmUsage startJvmUsage(boolean measurePeakHeap) {
+        if (measurePeakHeap) {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                    pool.resetPeakUsage();
+                }
+            }
+        }
+        return new JvmUsage(measurePeakHeap);
+    }
+
+    public static class JvmUsage {
+        private final boolean measurePeakHeap;
+        private final long gcCount;
+        private final long gcMillis;
+
+        private JvmUsage(boolean measurePeakHeap) {
+            this.measurePeakHeap = measurePeakHeap;
+            long[] gc = gcTotals();
+            this.gcCount = gc[0];
+            this.gcMillis = gc[1];
+        }
+
+        /**
+         * Records the heap peak and the garbage collections since this measurement started.
+         */
+        public void stop(KievCompileMetrics metrics) {
+            long peak = 0;
+            if (measurePeakHeap) {
+                for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                    if (pool.getType() == MemoryType.HEAP && pool.isValid() && pool.getPeakUsage() != null) {
+                        peak += pool.getPeakUsage().getUsed();
+                    }
+                }
+            }
+            long[] gc = gcTotals();
+            metrics.peakHeapBytes = Math.max(metrics.peakHeapBytes, peak);
+            metrics.maxHeapBytes = Runtime.getRuntime().maxMemory();
+            metrics.gcCount += gc[0] - gcCount;
+            metrics.gcMillis += gc[1] - gcMillis;
+        }
+
+        private static long[] gcTotals() {
+            long count = 0;
+            long millis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, gc.getCollectionCount());
+                millis += Math.max(0, gc.getCollectionTime());
+            }
+            return new long[]{count, millis};
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import org.gradle.api.internal.tasks.compile.ApiCompilerResult;
+import org.gradle.api.tasks.WorkResult;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The result of a Kiev compilation, with the {@link KievCompileMetrics metrics} of the compilation and the
+ * {@link KievDiagnostic diagnostics} of compilers which report them. A failed compilation carries its result
+ * as the partial result of the {@code CompilationFailedException}.
+ */
+public class KievCompileResult extends ApiCompilerResult {
+    private final KievCompileMetrics metrics;
+    private final List<KievDiagnostic> diagnostics = new ArrayList<>();
+
+    public KievCompileResult(KievCompileMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public KievCompileMetrics getMetrics() {
+        return metrics;
+    }
+
+    public List<KievDiagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * Returns the metrics of the given result, or {@code null} if it has none.
+     */
+    @Nullable
+    public static KievCompileMetrics metricsOf(WorkResult result) {
+        return result instanceof KievCompileResult ? ((KievCompileResult) result).getMetrics() : null;
+    }
+}
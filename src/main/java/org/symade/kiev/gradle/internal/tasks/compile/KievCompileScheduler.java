@@ -0,0 +1,237 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+import org.symade.kiev.gradle.api.plugins.KievPlugin;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * A build scoped service which keeps the history of the Kiev compilations of all projects.
+ *
+ * <p>For every compile task, the history holds the duration of its last compilations, its destination directory and
+ * the Kiev compile tasks whose output is on its classpath. From it, the service computes the expected critical path of
+ * a compilation, i.e. its own duration plus the longest expected critical path of the compilations depending on it,
+ * and logs it when the compilation starts, so the compilations which dominate the duration of a build can be found.
+ *
+ * <p>The service does not order the compilations: Gradle offers no way for a plugin to choose which of the tasks ready
+ * to run starts first, and waiting inside a task action would only hold a worker lease. It can throttle them though:
+ * when {@code kiev.compiler.maxParallelCompilations} is set, the service is registered with that maximum number of
+ * parallel usages and Gradle does not start more Kiev compile tasks at the same time.
+ */
+public abstract class KievCompileScheduler implements BuildService<KievCompileScheduler.Params>, AutoCloseable {
+    public static final String SERVICE_NAME = "kievCompileScheduler";
+
+    private static final Logger LOGGER = Logging.getLogger(KievPlugin.class);
+    private static final String HISTORY_HEADER = "# Kiev compile history 1";
+
+    public interface Params extends BuildServiceParameters {
+        /**
+         * The file the compile history is kept in between builds.
+         */
+        RegularFileProperty getHistoryFile();
+    }
+
+
+    private final Map<String, TaskHistory> history = new HashMap<>();
+    private boolean changed;
+
+    public KievCompileScheduler() {
+        readHistory();
+    }
+
+    /**
+     * Records the start of the compilation of a task.
+     *
+     * @param taskPath the path of the compile task
+     * @param destinationDir the destination directory of the compile task
+     * @param classpath the compile classpath of the task, used to find the Kiev compile tasks it depends on
+     */
+    public Compilation start(String taskPath, File destinationDir, Collection<File> classpath) {
+        long criticalPathMillis;
+        synchronized (this) {
+            recordDependencies(taskPath, destinationDir, classpath);
+            criticalPathMillis = criticalPathMillis(taskPath, new HashMap<>(), new HashSet<>());
+        }
+        if (criticalPathMillis > 0) {
+            LOGGER.info("Compiling {}, its expected critical path is {} ms", taskPath, criticalPathMillis);
+        }
+        return new Compilation(taskPath);
+    }
+
+    /**
+     * The expected duration of the longest chain of compilations starting with the task.
+     */
+    synchronized long getExpectedCriticalPathMillis(String taskPath) {
+        return criticalPathMillis(taskPath, new HashMap<>(), new HashSet<>());
+    }
+
+    private void recordDependencies(String taskPath, File destinationDir, Collection<File> classpath) {
+        Set<String> upstream = new TreeSet<>();
+        for (File entry : classpath) {
+            for (Map.Entry<String, TaskHistory> e : history.entrySet()) {
+                if (!e.getKey().equals(taskPath) && entry.equals(e.getValue().destinationDir)) {
+                    upstream.add(e.getKey());
+                }
+            }
+        }
+        TaskHistory task = history.computeIfAbsent(taskPath, key -> new TaskHistory());
+        if (!destinationDir.equals(task.destinationDir) || !upstream.equals(task.upstream)) {
+            task.destinationDir = destinationDir;
+            task.upstream = upstream;
+            changed = true;
+        }
+    }
+
+    /**
+     * The expected duration of the longest chain of compilations starting with the task. Tasks on a dependency
+     * cycle, which the history may contain after the build was changed, are not counted twice.
+     */
+    private long criticalPathMillis(String taskPath, Map<String, Long> computed, Set<String> visiting) {
+        Long known = computed.get(taskPath);
+        if (known != null) {
+            return known;
+        }
+        if (!visiting.add(taskPath)) {
+            return 0;
+        }
+        long downstream = 0;
+        for (Map.Entry<String, TaskHistory> e : history.entrySet()) {
+            if (e.getValue().upstream.contains(taskPath)) {
+                downstream = Math.max(downstream, criticalPathMillis(e.getKey(), computed, visiting));
+            }
+        }
+        visiting.remove(taskPath);
+        TaskHistory task = history.get(taskPath);
+        long result = (task != null ? task.durationMillis : 0) + downstream;
+        computed.put(taskPath, result);
+        return result;
+    }
+
+    private synchronized void completed(Compilation compilation, boolean succeeded) {
+        if (succeeded) {
+            long millis = (System.nanoTime() - compilation.started) / 1_000_000;
+            TaskHistory task = history.computeIfAbsent(compilation.taskPath, key -> new TaskHistory());
+            // smoothed, so a single unusual compilation does not dominate the history
+            task.durationMillis = task.durationMillis == 0 ? millis : (task.durationMillis + millis) / 2;
+            changed = true;
+        }
+    }
+
+    private void readHistory() {
+        File historyFile = getParameters().getHistoryFile().getAsFile().getOrNull();
+        if (historyFile == null || !historyFile.isFile()) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(historyFile.toPath(), StandardCharsets.UTF_8)) {
+            if (!HISTORY_HEADER.equals(in.readLine())) {
+                return;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\t", -1);
+                if (parts.length != 4) {
+                    continue;
+                }
+                TaskHistory task = new TaskHistory();
+                task.durationMillis = Long.parseLong(parts[1]);
+                task.destinationDir = parts[2].isEmpty() ? null : new File(parts[2]);
+                if (!parts[3].isEmpty()) {
+                    task.upstream.addAll(Arrays.asList(parts[3].split(",")));
+                }
+                history.put(parts[0], task);
+            }
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.info("Cannot read the Kiev compile history {}, the history starts over", historyFile, e);
+            history.clear();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        File historyFile = getParameters().getHistoryFile().getAsFile().getOrNull();
+        if (historyFile == null || !changed) {
+            return;
+        }
+        historyFile.getParentFile().mkdirs();
+        File tmp = new File(historyFile.getPath() + ".tmp");
+        try {
+            try (Writer out = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+                out.write(HISTORY_HEADER);
+                out.write('\n');
+                for (Map.Entry<String, TaskHistory> e : new TreeMap<>(history).entrySet()) {
+                    TaskHistory task = e.getValue();
+                    out.write(e.getKey() + '\t' + task.durationMillis + '\t'
+                        + (task.destinationDir != null ? task.destinationDir.getPath() : "") + '\t'
+                        + String.join(",", task.upstream) + '\n');
+                }
+            }
+            Files.move(tmp.toPath(), historyFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot write the Kiev compile history to {}", historyFile, e);
+        }
+    }
+
+    private static final class TaskHistory {
+        private long durationMillis;
+        @Nullable
+        private File destinationDir;
+        private Set<String> upstream = new TreeSet<>();
+    }
+
+    /**
+     * A running compilation, to be closed when it completes.
+     */
+    public final class Compilation implements AutoCloseable {
+        private final String taskPath;
+        private final long started = System.nanoTime();
+        private boolean succeeded;
+        private boolean closed;
+
+        private Compilation(String taskPath) {
+            this.taskPath = taskPath;
+        }
+
+        /**
+         * Records that the compilation succeeded, so its duration is kept in the history.
+         */
+        public void succeeded() {
+            succeeded = true;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                completed(this, succeeded);
+            }
+        }
+    }
+}
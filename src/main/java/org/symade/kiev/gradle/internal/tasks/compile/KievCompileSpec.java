@@ -18,6 +18,7 @@ package org.symade.kiev.gradle.internal.tasks.compile;
 
 import org.gradle.api.internal.tasks.compile.JvmLanguageCompileSpec;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.util.List;
 
@@ -27,4 +28,12 @@ public interface KievCompileSpec extends JvmLanguageCompileSpec {
     List<File> getKievClasspath();
 
     void setKievClasspath(List<File> classpath);
+
+    /**
+     * The directory where the classpath indexes for the compiler are cached, see {@link KievClasspathIndex}.
+     */
+    @Nullable
+    File getClasspathIndexDir();
+
+    void setClasspathIndexDir(@Nullable File classpathIndexDir);
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.symade.kiev.gradle.api.plugins.KievPlugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The AppCDS archive of the classes of a Kiev compiler, shared by the compiler daemons running the same compiler on the
+ * same JDK. The archive is a dynamic archive, written by the first daemon when it exits, after its compilations loaded
+ * the compiler classes; later daemons map the archived classes instead of loading them from the compiler jars.
+ *
+ * <p>Archives are kept in a cache directory, named by a hash of the compiler classpath and of the JDK version, so an
+ * archive is never used with other compiler jars or another JDK. JDK 19 and later create and validate the archive
+ * themselves ({@code -XX:+AutoCreateSharedArchive}); JDK 13 to 18 write it with {@code -XX:ArchiveClassesAtExit} when it
+ * does not exist yet. JVMs ignore an archive they cannot use, so a broken archive only costs the speedup.
+ *
+ * <p>Concurrent daemons would all write the missing archive to the same file, so only the daemon which takes the lock
+ * file of the archive writes it, the others run without an archive until it exists. A lock left by a daemon which never
+ * wrote the archive, e.g. because it crashed, is taken over once it is older than {@link #STALE_LOCK_MILLIS}.
+ */
+public class KievCompilerCdsArchive {
+    private static final Logger LOGGER = Logging.getLogger(KievPlugin.class);
+    private static final KievFileHasher HASHER = new KievFileHasher();
+    static final long STALE_LOCK_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    private KievCompilerCdsArchive() {
+    }
+
+    /**
+     * The JVM arguments which let a compiler daemon use, or create, the archive of the Kiev compiler.
+     *
+     * @param cacheDir the directory the archives are kept in
+     * @param kievClasspath the classpath of the Kiev compiler
+     * @param javaMajorVersion the major version of the JDK of the daemon
+     * @param javaRuntimeVersion the full version of the JDK of the daemon
+     */
+    public static List<String> jvmArgs(File cacheDir, Iterable<File> kievClasspath, int javaMajorVersion, String javaRuntimeVersion) {
+        if (javaMajorVersion < 13) {
+            return Collections.emptyList();
+        }
+        MessageDigest digest = KievFileHasher.newDigest();
+        digest.update(javaRuntimeVersion.getBytes(StandardCharsets.UTF_8));
+        for (File f : kievClasspath) {
+            digest.update(HASHER.hash(f).getBytes(StandardCharsets.UTF_8));
+        }
+        File archive = new File(cacheDir, "kiev-compiler-" + KievFileHasher.toHex(digest.digest()).substring(0, 32) + ".jsa");
+        cacheDir.mkdirs();
+
+        File lock = new File(archive.getPath() + ".lock");
+        if (archive.isFile()) {
+            lock.delete();
+        } else if (!tryLock(lock)) {
+            LOGGER.info("Another Kiev compiler daemon writes the class data sharing archive {}", archive);
+            return Collections.emptyList();
+        } else {
+            LOGGER.info("The Kiev compiler daemon writes the class data sharing archive {} when it exits", archive);
+        }
+
+        List<String> jvmArgs = new ArrayList<>();
+        if (javaMajorVersion >= 19) {
+            jvmArgs.add("-XX:+AutoCreateSharedArchive");
+            jvmArgs.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+        } else if (archive.isFile()) {
+            jvmArgs.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+        } else {
+            jvmArgs.add("-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath());
+        }
+        return jvmArgs;
+    }
+
+    private static boolean tryLock(File lock) {
+        try {
+            if (lock.createNewFile()) {
+                return true;
+            }
+            if (System.currentTimeMillis() - lock.lastModified() > STALE_LOCK_MILLIS) {
+                // two daemons may both take over a stale lock, which is rare enough to accept
+                return lock.delete() && lock.createNewFile();
+            }
+            return false;
+        } catch (IOException e) {
+            LOGGER.info("Cannot lock the class data sharing archive {}", lock, e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import org.gradle.api.provider.Property;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+/**
+ * A build scoped {@link KievCompilerClassLoaderPool} shared by all in-process Kiev compilations of a build.
+ */
+public abstract class KievCompilerClassLoaderCache implements BuildService<KievCompilerClassLoaderCache.Params>, AutoCloseable {
+    public static final String SERVICE_NAME = "kievCompilerClassLoaderCache";
+
+    public interface Params extends BuildServiceParameters {
+        /**
+         * The maximum number of idle class loaders to keep. Zero disables caching.
+         */
+        Property<Integer> getMaxCachedClassLoaders();
+
+        /**
+         * The maximum total size, in bytes, of the classpath of idle class loaders to keep.
+         * Used as an estimate of the memory retained by the cache.
+         */
+        Property<Long> getMaxRetainedClasspathSize();
+    }
+
+    private final KievCompilerClassLoaderPool pool;
+
+    public KievCompilerClassLoaderCache() {
+        this.pool = new KievCompilerClassLoaderPool(
+            getParameters().getMaxCachedClassLoaders().getOrElse(0),
+            getParameters().getMaxRetainedClasspathSize().getOrElse(Long.MAX_VALUE)
+        );
+    }
+
+    public KievCompilerClassLoaderPool getPool() {
+        return pool;
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.symade.kiev.gradle.api.plugins.KievPlugin;
+
+import javax.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * A pool of class loaders for the Kiev compiler.
+ *
+ * <p>Class loaders are keyed by a content hash of the Kiev classpath, so all {@code KievCompile} tasks
+ * using the same symade jar share an already loaded and JIT-warmed compiler. A class loader is leased
+ * exclusively for the duration of one compilation, because {@code kiev.Compiler} keeps its state in
+ * static fields; concurrent compilations with the same classpath get their own class loaders, which are
+ * kept for reuse afterwards. Idle class loaders are evicted in LRU order once either the number of idle
+ * class loaders or the total size of their classpath exceeds the configured limits.
+ *
+ * <p>When a lease is closed, the static state of the compiler is cleared by its {@code kiev.Compiler.reset()}
+ * method. The class loader of a compiler without that method is only reused by compilations of the same owner,
+ * i.e. the same compile task, so no compilation sees the symbols of another task.
+ */
+public class KievCompilerClassLoaderPool implements AutoCloseable {
+    private static final Logger LOGGER = Logging.getLogger(KievPlugin.class);
+
+    private final int maxCachedClassLoaders;
+    private final long maxRetainedClasspathSize;
+    private final KievFileHasher fileHasher = new KievFileHasher();
+    // idle class loaders in LRU order, guarded by 'this'
+    private final LinkedHashMap<CachedClassLoader, String> idle = new LinkedHashMap<>(16, 0.75f, true);
+    private long idleClasspathSize;
+    private boolean closed;
+
+    /**
+     * @param maxCachedClassLoaders the maximum number of idle class loaders to keep, zero disables caching
+     * @param maxRetainedClasspathSize the maximum total size, in bytes, of the classpath of idle class loaders to keep,
+     * used as an estimate of the memory retained by the pool
+     */
+    public KievCompilerClassLoaderPool(int maxCachedClassLoaders, long maxRetainedClasspathSize) {
+        this.maxCachedClassLoaders = maxCachedClassLoaders;
+        this.maxRetainedClasspathSize = maxRetainedClasspathSize;
+    }
+
+    /**
+     * Leases a class loader for the given Kiev classpath, creating a new one if no idle class loader
+     * for this classpath is available to the owner.
+     *
+     * @param owner the identity of the compilations which may share compiler state, e.g. the destination directory of the task
+     */
+    public Lease acquire(List<File> kievClasspath, ClassLoader parent, String owner) {
+        String key = hashClasspath(kievClasspath) + '@' + System.identityHashCode(parent);
+        synchronized (this) {
+            Iterator<CachedClassLoader> it = idle.keySet().iterator();
+            while (it.hasNext()) {
+                CachedClassLoader cached = it.next();
+                if (cached.key.equals(key) && cached.parent == parent && (cached.owner == null || cached.owner.equals(owner))) {
+                    it.remove();
+                    idleClasspathSize -= cached.classpathSize;
+                    LOGGER.info("Reusing Kiev compiler class loader for classpath {}", kievClasspath);
+                    return new Lease(this, cached, owner, true);
+                }
+            }
+        }
+        LOGGER.info("Creating Kiev compiler class loader for classpath {}", kievClasspath);
+        return new Lease(this, new CachedClassLoader(key, parent, createClassLoader(kievClasspath, parent), classpathSize(kievClasspath)), owner, false);
+    }
+
+    /**
+     * Creates a class loader for the given Kiev classpath which is closed together with the lease,
+     * for use when no pool is available.
+     */
+    public static Lease createUncached(List<File> kievClasspath, ClassLoader parent) {
+        return new Lease(null, new CachedClassLoader("", parent, createClassLoader(kievClasspath, parent), 0), "", false);
+    }
+
+    private synchronized void release(CachedClassLoader cached, String owner) {
+        if (closed || maxCachedClassLoaders <= 0) {
+            closeQuietly(cached);
+            return;
+        }
+        cached.owner = resetCompiler(cached) ? null : owner;
+        idle.put(cached, cached.key);
+        idleClasspathSize += cached.classpathSize;
+        Iterator<CachedClassLoader> it = idle.keySet().iterator();
+        while (it.hasNext() && (idle.size() > maxCachedClassLoaders || idleClasspathSize > maxRetainedClasspathSize)) {
+            CachedClassLoader eldest = it.next();
+            it.remove();
+            idleClasspathSize -= eldest.classpathSize;
+            LOGGER.info("Evicting Kiev compiler class loader {}", eldest.key);
+            closeQuietly(eldest);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        evictIdle();
+    }
+
+    /**
+     * Closes all idle class loaders, e.g. when no compilation is expected soon.
+     */
+    public synchronized void evictIdle() {
+        for (CachedClassLoader cached : idle.keySet()) {
+            closeQuietly(cached);
+        }
+        idle.clear();
+        idleClasspathSize = 0;
+    }
+
+    /**
+     * Clears the static state of the compiler loaded by the class loader, if the compiler can.
+     */
+    private static boolean resetCompiler(CachedClassLoader cached) {
+        try {
+            Class<?> compilerClass = Class.forName("kiev.Compiler", false, cached.classLoader);
+            compilerClass.getMethod("reset").invoke(null);
+            return true;
+        } catch (NoSuchMethodException | ClassNotFoundException e) {
+            return false;
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            LOGGER.info("Cannot reset kiev.Compiler", e);
+            return false;
+        }
+    }
+
+    private static URLClassLoader createClassLoader(List<File> kievClasspath, ClassLoader parent) {
+        ArrayList<URL> classLoaderURLs = new ArrayList<>();
+        for (File f : kievClasspath) {
+            try {
+                classLoaderURLs.add(f.toURI().toURL());
+            } catch (MalformedURLException e) {
+                // ignore
+            }
+        }
+        return new URLClassLoader(classLoaderURLs.toArray(new URL[0]), parent);
+    }
+
+    private static long classpathSize(List<File> kievClasspath) {
+        long size = 0;
+        for (File f : kievClasspath) {
+            size += f.length();
+        }
+        return size;
+    }
+
+    private static void closeQuietly(CachedClassLoader cached) {
+        try {
+            cached.classLoader.close();
+        } catch (IOException e) {
+            LOGGER.debug("Cannot close Kiev compiler class loader", e);
+        }
+    }
+
+    private String hashClasspath(List<File> kievClasspath) {
+        MessageDigest digest = KievFileHasher.newDigest();
+        for (File f : kievClasspath) {
+            digest.update(f.getName().getBytes(StandardCharsets.UTF_8));
+            digest.update(fileHasher.hash(f).getBytes(StandardCharsets.UTF_8));
+        }
+        return KievFileHasher.toHex(digest.digest());
+    }
+
+    private static final class CachedClassLoader {
+        private final String key;
+        private final ClassLoader parent;
+        private final URLClassLoader classLoader;
+        private final long classpathSize;
+        // the owner of the compiler state left in the class loader, null once the state was reset
+        @Nullable
+        private String owner;
+
+        CachedClassLoader(String key, ClassLoader parent, URLClassLoader classLoader, long classpathSize) {
+            this.key = key;
+            this.parent = parent;
+            this.classLoader = classLoader;
+            this.classpathSize = classpathSize;
+        }
+    }
+
+    /**
+     * An exclusive lease of a compiler class loader. Closing the lease returns the class loader to the pool,
+     * unless it was {@link #discard() discarded} or the lease is not backed by a pool.
+     */
+    public static final class Lease implements AutoCloseable {
+        private final KievCompilerClassLoaderPool owner;
+        private final CachedClassLoader cached;
+        private final String compilationOwner;
+        private final boolean reused;
+        private boolean done;
+
+        private Lease(@Nullable KievCompilerClassLoaderPool owner, CachedClassLoader cached, String compilationOwner, boolean reused) {
+            this.owner = owner;
+            this.cached = cached;
+            this.compilationOwner = compilationOwner;
+            this.reused = reused;
+        }
+
+        public ClassLoader getClassLoader() {
+            return cached.classLoader;
+        }
+
+        /**
+         * Whether the class loader was taken from the pool rather than newly created.
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        /**
+         * Closes the class loader instead of returning it to the pool, e.g. when the compiler
+         * may have been left in an inconsistent state.
+         */
+        public void discard() {
+            if (!done) {
+                done = true;
+                closeQuietly(cached);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!done) {
+                done = true;
+                if (owner != null) {
+                    owner.release(cached, compilationOwner);
+                } else {
+                    closeQuietly(cached);
+                }
+            }
+        }
+    }
+}
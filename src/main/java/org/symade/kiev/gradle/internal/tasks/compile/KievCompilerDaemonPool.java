@@ -0,0 +1,312 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import org.gradle.api.BuildCancelledException;
+import org.gradle.internal.serialize.PlaceholderException;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+import org.gradle.initialization.BuildCancellationToken;
+import org.gradle.process.internal.health.memory.MemoryAmount;
+import org.symade.kiev.gradle.api.plugins.KievPlugin;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A build scoped pool of forked Kiev compiler daemons, shared by all forked Kiev compilations of a build.
+ *
+ * <p>The pool has a fixed number of slots and compilations wait in a fair queue for a free slot, so no more than
+ * {@code maxDaemons} forked compilations run at the same time, however many Kiev tasks run in parallel. The pool limits
+ * concurrency, not the number of daemon processes: the slot is named by a system property in the JVM arguments of the
+ * daemon and Gradle only reuses a daemon for the same fork options, so compilations of a slot share a daemon only when
+ * their tasks configure the same JVM arguments and heap sizes. Tasks with their own fork options get daemons of their own.
+ *
+ * <p>A slot is recycled, i.e. its next compilation starts a new daemon, after {@code maxCompilationsPerDaemon}
+ * compilations, when the heap usage of its last compilation exceeded {@code maxHeapUsagePercent} of the daemon
+ * heap, or when its daemon failed. The replaced daemon stays idle until Gradle expires it. Slots are kept in a
+ * static map, since the daemons outlive the build.
+ *
+ * <p>When no heap size is configured, the heap of a slot is sized from the peak heap usage of the previous
+ * compilations of the tasks it served, kept in a {@link KievHeapHistory}, plus a safety margin and up to a cap. A slot
+ * keeps the largest heap any of its compilations needed, so smaller compilations reuse its daemon, and it is only
+ * recycled when a compilation needs more. Heap sizes are rounded up to a power of two, so the heap grows in few steps.
+ */
+public abstract class KievCompilerDaemonPool implements BuildService<KievCompilerDaemonPool.Params>, AutoCloseable {
+    public static final String SERVICE_NAME = "kievCompilerDaemonPool";
+
+    /**
+     * The system property naming the slot of a daemon.
+     */
+    static final String DAEMON_PROPERTY = "kiev.compiler.daemon";
+
+    /**
+     * The system property with the time, in milliseconds, after which an idle daemon releases its compiler.
+     */
+    static final String IDLE_TIMEOUT_PROPERTY = "kiev.compiler.idleTimeout";
+
+    private static final Logger LOGGER = Logging.getLogger(KievPlugin.class);
+    private static final long MIN_AUTOMATIC_HEAP_BYTES = 256L * 1024 * 1024;
+
+    private static final ConcurrentMap<Integer, Slot> SLOTS = new ConcurrentHashMap<>();
+
+    public interface Params extends BuildServiceParameters {
+        /**
+         * The maximum number of concurrent forked compilations, i.e. the number of slots of the pool.
+         */
+        Property<Integer> getMaxDaemons();
+
+        /**
+         * The number of compilations after which a daemon is replaced. Zero never replaces daemons for that reason.
+         */
+        Property<Integer> getMaxCompilationsPerDaemon();
+
+        /**
+         * The heap usage of a compilation, in percent of the maximum heap of the daemon, above which the daemon is replaced.
+         */
+        Property<Integer> getMaxHeapUsagePercent();
+
+        /**
+         * The maximum heap size of the daemons, used when {@code kievOptions.forkOptions.memoryMaximumSize} is not set.
+         */
+        Property<String> getDaemonHeapSize();
+
+        /**
+         * The time, in milliseconds, after which an idle daemon releases its compiler. Zero keeps the compiler.
+         */
+        Property<Long> getIdleTimeoutMillis();
+
+        /**
+         * The file the peak heap usage of the compilations is kept in between builds. Without it, heap sizes are not chosen automatically.
+         */
+        RegularFileProperty getHeapHistoryFile();
+
+        /**
+         * The margin, in percent, added to the expected peak heap usage of a compilation to size the heap of its daemon.
+         */
+        Property<Integer> getHeapMarginPercent();
+
+        /**
+         * The largest heap size chosen automatically, e.g. {@code 4g}.
+         */
+        Property<String> getMaxAutomaticHeapSize();
+    }
+
+    private final BlockingQueue<Slot> freeSlots;
+    @Nullable
+    private final KievHeapHistory heapHistory;
+
+    public KievCompilerDaemonPool() {
+        int maxDaemons = Math.max(1, getParameters().getMaxDaemons().getOrElse(1));
+        this.freeSlots = new ArrayBlockingQueue<>(maxDaemons, true);
+        for (int i = 0; i < maxDaemons; i++) {
+            freeSlots.add(SLOTS.computeIfAbsent(i, Slot::new));
+        }
+        File heapHistoryFile = getParameters().getHeapHistoryFile().getAsFile().getOrNull();
+        this.heapHistory = heapHistoryFile == null ? null : new KievHeapHistory(heapHistoryFile);
+    }
+
+    /**
+     * Waits for a free daemon and sets up the fork options of the spec to compile in it.
+     * Stops waiting when the build is cancelled.
+     */
+    Lease acquire(KievJavaJointCompileSpec spec, @Nullable BuildCancellationToken cancellationToken) {
+        long started = System.nanoTime();
+        Slot slot;
+        try {
+            do {
+                if (cancellationToken != null && cancellationToken.isCancellationRequested()) {
+                    throw new BuildCancelledException("Kiev compilation was cancelled while waiting for a compiler daemon");
+                }
+                slot = freeSlots.poll(1, TimeUnit.SECONDS);
+            } while (slot == null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a Kiev compiler daemon", e);
+        }
+        long waitedMillis = (System.nanoTime() - started) / 1_000_000;
+        if (waitedMillis > 0) {
+            LOGGER.info("Waited {} ms for Kiev compiler daemon {}", waitedMillis, slot.index);
+        }
+
+        MinimalKievCompilerDaemonForkOptions forkOptions = spec.getKievCompileOptions().getForkOptions();
+        if (forkOptions.getMemoryMaximumSize() == null) {
+            forkOptions.setMemoryMaximumSize(getParameters().getDaemonHeapSize().getOrNull());
+        }
+        String key = KievHeapHistory.keyOf(spec);
+        int sourceFiles = 0;
+        for (File ignored : spec.getSourceFiles()) {
+            sourceFiles++;
+        }
+        long classpathBytes = KievHeapHistory.classpathBytes(spec.getCompileClasspath());
+        if (forkOptions.getMemoryMaximumSize() == null && heapHistory != null) {
+            long heapBytes = automaticHeapBytes(heapHistory.estimatePeakHeapBytes(key, sourceFiles, classpathBytes));
+            if (heapBytes > slot.heapBytes) {
+                if (slot.heapBytes > 0) {
+                    recycle(slot, "to grow its heap to " + heapBytes / (1024 * 1024) + " MB");
+                }
+                slot.heapBytes = heapBytes;
+            }
+            if (slot.heapBytes > 0) {
+                LOGGER.info("Sized the heap of Kiev compiler daemon {} to {} MB from the previous compilations", slot.index, slot.heapBytes / (1024 * 1024));
+                forkOptions.setMemoryMaximumSize(slot.heapBytes / (1024 * 1024) + "m");
+                if (forkOptions.getMemoryInitialSize() == null) {
+                    forkOptions.setMemoryInitialSize(slot.heapBytes / 2 / (1024 * 1024) + "m");
+                }
+            }
+        }
+        // named after growing the heap, which recycles the slot
+        List<String> jvmArgs = new ArrayList<>();
+        if (forkOptions.getJvmArgs() != null) {
+            jvmArgs.addAll(forkOptions.getJvmArgs());
+        }
+        jvmArgs.add("-D" + DAEMON_PROPERTY + "=" + slot.index + "." + slot.generation);
+        long idleTimeoutMillis = getParameters().getIdleTimeoutMillis().getOrElse(0L);
+        if (idleTimeoutMillis > 0) {
+            jvmArgs.add("-D" + IDLE_TIMEOUT_PROPERTY + "=" + idleTimeoutMillis);
+        }
+        forkOptions.setJvmArgs(jvmArgs);
+        return new Lease(slot, key, sourceFiles, classpathBytes);
+    }
+
+    /**
+     * The heap size for the expected peak usage, with the margin, rounded up to a power of two and capped.
+     * Zero when nothing is expected.
+     */
+    private long automaticHeapBytes(long expectedPeakBytes) {
+        if (expectedPeakBytes <= 0) {
+            return 0;
+        }
+        long withMargin = expectedPeakBytes + expectedPeakBytes * Math.max(0, getParameters().getHeapMarginPercent().getOrElse(0)) / 100;
+        long heapBytes = Math.max(MIN_AUTOMATIC_HEAP_BYTES, Long.highestOneBit(withMargin - 1) << 1);
+        String maxHeapSize = getParameters().getMaxAutomaticHeapSize().getOrNull();
+        if (maxHeapSize != null) {
+            heapBytes = Math.min(heapBytes, MemoryAmount.parseNotation(maxHeapSize));
+        }
+        return heapBytes;
+    }
+
+    private void completed(Slot slot, @Nullable KievCompileMetrics metrics) {
+        slot.compilations++;
+        int maxCompilations = getParameters().getMaxCompilationsPerDaemon().getOrElse(0);
+        int maxHeapUsagePercent = getParameters().getMaxHeapUsagePercent().getOrElse(100);
+        if (maxCompilations > 0 && slot.compilations >= maxCompilations) {
+            recycle(slot, "after " + slot.compilations + " compilations");
+        } else if (metrics != null && metrics.getMaxHeapBytes() > 0 && metrics.getPeakHeapBytes() * 100 > metrics.getMaxHeapBytes() * maxHeapUsagePercent) {
+            recycle(slot, "using " + metrics.getPeakHeapBytes() * 100 / metrics.getMaxHeapBytes() + "% of its heap");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (heapHistory != null) {
+            heapHistory.write();
+        }
+    }
+
+    /**
+     * Whether the failure is an exhausted heap or the death of the daemon process, rather than an error in the compiler.
+     * Failures from the daemon are deserialized as placeholders of the original exception, so they are matched by name.
+     */
+    private static boolean isDaemonFailure(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            String description = t instanceof PlaceholderException ? ((PlaceholderException) t).getExceptionClassName() : t.getClass().getName();
+            if (t instanceof OutOfMemoryError || description.equals(OutOfMemoryError.class.getName())
+                    || description.endsWith(".WorkerProcessException") || description.endsWith(".ExecException")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void recycle(Slot slot, String reason) {
+        LOGGER.info("Replacing Kiev compiler daemon {} {}", slot.index, reason);
+        slot.generation++;
+        slot.compilations = 0;
+    }
+
+    /**
+     * A slot of the pool, owned by at most one compilation at a time.
+     */
+    private static final class Slot {
+        private final int index;
+        private int generation;
+        private int compilations;
+        /**
+         * The automatic heap size of the daemons of the slot, the largest one its compilations needed.
+         */
+        private long heapBytes;
+
+        Slot(int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * The exclusive use of a daemon by one compilation. Closing the lease returns the daemon to the pool.
+     */
+    final class Lease implements AutoCloseable {
+        private final Slot slot;
+        private final String key;
+        private final int sourceFiles;
+        private final long classpathBytes;
+
+        private Lease(Slot slot, String key, int sourceFiles, long classpathBytes) {
+            this.slot = slot;
+            this.key = key;
+            this.sourceFiles = sourceFiles;
+            this.classpathBytes = classpathBytes;
+        }
+
+        /**
+         * Records a compilation which ran to its end, successfully or with compile errors.
+         */
+        void completed(@Nullable KievCompileMetrics metrics) {
+            KievCompilerDaemonPool.this.completed(slot, metrics);
+            if (heapHistory != null && metrics != null && metrics.getPeakHeapBytes() > 0) {
+                heapHistory.record(key, sourceFiles, classpathBytes, metrics.getPeakHeapBytes());
+            }
+        }
+
+        /**
+         * Records a failure of the compilation other than compile errors, after which the daemon is replaced. When the
+         * daemon ran out of heap or crashed, the next compilation gets a larger heap.
+         */
+        void failed(Throwable failure, @Nullable String maxHeapSize) {
+            recycle(slot, "after a failure: " + failure);
+            if (heapHistory != null && maxHeapSize != null && isDaemonFailure(failure)) {
+                heapHistory.record(key, sourceFiles, classpathBytes, MemoryAmount.parseNotation(maxHeapSize));
+            }
+        }
+
+        @Override
+        public void close() {
+            freeSlots.add(slot);
+        }
+    }
+}
@@ -17,8 +17,12 @@
 package org.symade.kiev.gradle.internal.tasks.compile;
 
 import org.gradle.api.internal.ClassPathRegistry;
+import org.gradle.api.internal.tasks.compile.daemon.CompilerWorkerExecutor;
+import org.gradle.api.internal.tasks.compile.daemon.ProcessIsolatedCompilerWorkerExecutor;
 import org.gradle.api.internal.tasks.compile.processing.AnnotationProcessorDetector;
+import org.gradle.api.tasks.WorkResult;
 //import org.gradle.api.problems.internal.InternalProblems;
+import org.gradle.initialization.BuildCancellationToken;
 import org.gradle.initialization.ClassLoaderRegistry;
 import org.gradle.initialization.layout.ProjectCacheDir;
 import org.gradle.internal.jvm.inspection.JvmVersionDetector;
@@ -30,6 +34,13 @@ import org.gradle.workers.internal.ActionExecutionSpecFactory;
 import org.gradle.workers.internal.IsolatedClassloaderWorkerFactory;
 import org.gradle.workers.internal.WorkerDaemonFactory;
 
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 public class KievCompilerFactory implements CompilerFactory<KievJavaJointCompileSpec> {
     private final WorkerDaemonFactory workerDaemonFactory;
     private final IsolatedClassloaderWorkerFactory inProcessWorkerFactory;
@@ -41,9 +52,12 @@ public class KievCompilerFactory implements CompilerFactory<KievJavaJointCompile
     private final ClassLoaderRegistry classLoaderRegistry;
     private final ActionExecutionSpecFactory actionExecutionSpecFactory;
     private final ProjectCacheDir projectCacheDir;
+    private final KievCompilerClassLoaderPool classLoaderPool;
+    private final KievCompilerDaemonPool daemonPool;
+    private final BuildCancellationToken cancellationToken;
 //    private final InternalProblems problems;
 
-    public KievCompilerFactory(WorkerDaemonFactory workerDaemonFactory, IsolatedClassloaderWorkerFactory inProcessWorkerFactory, JavaForkOptionsFactory forkOptionsFactory, AnnotationProcessorDetector processorDetector, JvmVersionDetector jvmVersionDetector, WorkerDirectoryProvider workerDirectoryProvider, ClassPathRegistry classPathRegistry, ClassLoaderRegistry classLoaderRegistry, ActionExecutionSpecFactory actionExecutionSpecFactory, ProjectCacheDir projectCacheDir/*, InternalProblems problems*/) {
+    public KievCompilerFactory(WorkerDaemonFactory workerDaemonFactory, IsolatedClassloaderWorkerFactory inProcessWorkerFactory, JavaForkOptionsFactory forkOptionsFactory, AnnotationProcessorDetector processorDetector, JvmVersionDetector jvmVersionDetector, WorkerDirectoryProvider workerDirectoryProvider, ClassPathRegistry classPathRegistry, ClassLoaderRegistry classLoaderRegistry, ActionExecutionSpecFactory actionExecutionSpecFactory, ProjectCacheDir projectCacheDir, @Nullable KievCompilerClassLoaderPool classLoaderPool, @Nullable KievCompilerDaemonPool daemonPool, @Nullable BuildCancellationToken cancellationToken/*, InternalProblems problems*/) {
         this.workerDaemonFactory = workerDaemonFactory;
         this.inProcessWorkerFactory = inProcessWorkerFactory;
         this.forkOptionsFactory = forkOptionsFactory;
@@ -54,38 +68,80 @@ public class KievCompilerFactory implements CompilerFactory<KievJavaJointCompile
         this.classLoaderRegistry = classLoaderRegistry;
         this.actionExecutionSpecFactory = actionExecutionSpecFactory;
         this.projectCacheDir = projectCacheDir;
+        this.classLoaderPool = classLoaderPool;
+        this.daemonPool = daemonPool;
+        this.cancellationToken = cancellationToken;
 //        this.problems = problems;
     }
 
     @Override
     public Compiler<KievJavaJointCompileSpec> newCompiler(KievJavaJointCompileSpec spec) {
-//        MinimalKievCompileOptions kievOptions = spec.getKievCompileOptions();
-//        CompilerWorkerExecutor compilerWorkerExecutor =
-//                new ClassloaderIsolatedCompilerWorkerExecutor(inProcessWorkerFactory, actionExecutionSpecFactory, projectCacheDir);
-
-        return new InProcessKievCompiler();
-//        Compiler<KievJavaJointCompileSpec> kievCompiler = new DaemonGroovyCompiler(workerDirectoryProvider.getWorkingDirectory(), DaemonSideCompiler.class, classPathRegistry, compilerWorkerExecutor, classLoaderRegistry, forkOptionsFactory, jvmVersionDetector, problems.getInternalReporter());
-//        return new AnnotationProcessorDiscoveringCompiler<>(new NormalizingKievCompiler(kievCompiler), processorDetector);
+        MinimalKievCompileOptions kievOptions = spec.getKievCompileOptions();
+        Compiler<KievJavaJointCompileSpec> kievCompiler;
+        if (kievOptions.isFork()) {
+            CompilerWorkerExecutor compilerWorkerExecutor =
+                    new ProcessIsolatedCompilerWorkerExecutor(workerDaemonFactory, actionExecutionSpecFactory, projectCacheDir);
+            kievCompiler = new DaemonKievCompiler(workerDirectoryProvider.getWorkingDirectory(), DaemonSideCompiler.class, classPathRegistry, compilerWorkerExecutor, classLoaderRegistry, forkOptionsFactory);
+            if (daemonPool != null) {
+                kievCompiler = new PooledKievCompiler(kievCompiler, daemonPool, cancellationToken);
+            }
+        } else if (kievOptions.isJointCompilation()) {
+            kievCompiler = new ApiKievCompiler(new InProcessKievCompiler(classLoaderPool, cancellationToken));
+        } else {
+            kievCompiler = new InProcessKievCompiler(classLoaderPool, cancellationToken);
+        }
+        // partitions would separate the Java sources from the stubs they are compiled against
+        if (kievOptions.getMaxParallelPartitions() > 1 && !kievOptions.isJointCompilation()) {
+            kievCompiler = new ParallelKievCompiler(kievCompiler);
+        }
+        return new NormalizingKievCompiler(kievCompiler);
     }
 
-//    public static class DaemonSideCompiler implements Compiler<KievJavaJointCompileSpec> {
-//        private final ProjectLayout projectLayout;
-//        private final List<File> javaCompilerPlugins;
-//        private final InternalProblems problemsService;
-//
-//        @Inject
-//        public DaemonSideCompiler(ProjectLayout projectLayout, List<File> javaCompilerPlugins, InternalProblems problemsService) {
-//            this.projectLayout = projectLayout;
-//            this.javaCompilerPlugins = javaCompilerPlugins;
-//            this.problemsService = problemsService;
-//        }
-//
-//        @Override
-//        public WorkResult execute(KievJavaJointCompileSpec spec) {
-//            Compiler<JavaCompileSpec> javaCompiler = new JdkJavaCompiler(new JavaHomeBasedJavaCompilerFactory(javaCompilerPlugins), problemsService);
-//            Compiler<KievJavaJointCompileSpec> kievCompiler = new ApiKievCompiler(javaCompiler, projectLayout);
-//            return kievCompiler.execute(spec);
-//        }
-//    }
+    /**
+     * The compiler instantiated inside the worker daemon. The class loader pool is static, so it lives
+     * as long as the daemon and keeps a warmed up Kiev compiler between compilations. Daemons of a
+     * {@link KievCompilerDaemonPool} release the compiler once they have been idle for the pool's idle timeout.
+     */
+    public static class DaemonSideCompiler implements Compiler<KievJavaJointCompileSpec> {
+        private static final KievCompilerClassLoaderPool CLASS_LOADER_POOL = new KievCompilerClassLoaderPool(1, Long.MAX_VALUE);
+        private static final long IDLE_TIMEOUT_MILLIS = Long.getLong(KievCompilerDaemonPool.IDLE_TIMEOUT_PROPERTY, 0L);
+        private static final ScheduledExecutorService IDLE_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Kiev compiler idle timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private static ScheduledFuture<?> idleRelease;
+
+        @Inject
+        public DaemonSideCompiler() {
+        }
+
+        @Override
+        public WorkResult execute(KievJavaJointCompileSpec spec) {
+            cancelIdleRelease();
+            try {
+                InProcessKievCompiler kievCompiler = new InProcessKievCompiler(CLASS_LOADER_POOL, null, true);
+                if (spec.getKievCompileOptions().isJointCompilation()) {
+                    return new ApiKievCompiler(kievCompiler).execute(spec);
+                }
+                return kievCompiler.execute(spec);
+            } finally {
+                scheduleIdleRelease();
+            }
+        }
+
+        private static synchronized void cancelIdleRelease() {
+            if (idleRelease != null) {
+                idleRelease.cancel(false);
+                idleRelease = null;
+            }
+        }
+
+        private static synchronized void scheduleIdleRelease() {
+            if (IDLE_TIMEOUT_MILLIS > 0) {
+                idleRelease = IDLE_TIMER.schedule(CLASS_LOADER_POOL::evictIdle, IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
 
 }
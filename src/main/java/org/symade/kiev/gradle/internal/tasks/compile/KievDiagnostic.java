@@ -0,0 +1,119 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A diagnostic reported by the Kiev compiler, see {@link KievDiagnosticCollector}.
+ */
+public class KievDiagnostic implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Kind {
+        ERROR, WARNING, NOTE
+    }
+
+    private final Kind kind;
+    @Nullable
+    private final String file;
+    private final int line;
+    private final int column;
+    private final String message;
+
+    public KievDiagnostic(Kind kind, @Nullable String file, int line, int column, String message) {
+        this.kind = kind;
+        this.file = file;
+        this.line = line;
+        this.column = column;
+        this.message = message;
+    }
+
+    /**
+     * Converts a diagnostic passed by the compiler as a map with the keys {@code kind}, {@code file},
+     * {@code line}, {@code column} and {@code message}. Unknown kinds are treated as notes.
+     */
+    static KievDiagnostic fromMap(Map<String, ?> diagnostic) {
+        Kind kind;
+        try {
+            kind = Kind.valueOf(String.valueOf(diagnostic.get("kind")).toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            kind = Kind.NOTE;
+        }
+        Object file = diagnostic.get("file");
+        return new KievDiagnostic(kind, file == null ? null : file.toString(),
+                toInt(diagnostic.get("line")), toInt(diagnostic.get("column")), String.valueOf(diagnostic.get("message")));
+    }
+
+    private static int toInt(@Nullable Object value) {
+        if (value instanceof Number)
+            return ((Number) value).intValue();
+        try {
+            return value == null ? 0 : Integer.parseInt(value.toString());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * The absolute path of the source file, or {@code null} if the diagnostic is not about a file.
+     */
+    @Nullable
+    public String getFile() {
+        return file;
+    }
+
+    /**
+     * The line in the file, starting with 1, or 0 if unknown.
+     */
+    public int getLine() {
+        return line;
+    }
+
+    /**
+     * The column in the line, starting with 1, or 0 if unknown.
+     */
+    public int getColumn() {
+        return column;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Formats the diagnostic like javac does.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (file != null) {
+            sb.append(file).append(':');
+            if (line > 0)
+                sb.append(line).append(':');
+            sb.append(' ');
+        }
+        return sb.append(kind.name().toLowerCase(Locale.ROOT)).append(": ").append(message).toString();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.symade.kiev.gradle.api.plugins.KievPlugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Receives the diagnostics of the Kiev compiler while it runs. Compilers which accept a listener through
+ * {@code kiev.Compiler.setDiagnosticListener(Predicate<Map<String, ?>>)} pass every diagnostic to it, see
+ * {@link KievDiagnostic#fromMap(Map)}, and stop compiling once it returns {@code false}.
+ *
+ * <p>Diagnostics are logged as they arrive, so errors are seen before a long compilation ends, unless logging is
+ * deferred to the caller of the compiler. Only the first {@link #MAX_BUFFERED_DIAGNOSTICS} are kept for the result,
+ * and the compilation is asked to stop after {@code maxErrors} errors.
+ */
+class KievDiagnosticCollector implements Predicate<Map<String, ?>> {
+    static final int MAX_BUFFERED_DIAGNOSTICS = 500;
+
+    private static final Logger LOGGER = Logging.getLogger(KievPlugin.class);
+
+    private final int maxErrors;
+    private final boolean deferLogging;
+    private final List<KievDiagnostic> diagnostics = new ArrayList<>();
+    private int errorCount;
+    private int warningCount;
+
+    /**
+     * @param maxErrors the number of errors after which the compilation is stopped, zero never stops it
+     * @param deferLogging whether the diagnostics are only kept for the result
+     */
+    KievDiagnosticCollector(int maxErrors, boolean deferLogging) {
+        this.maxErrors = maxErrors;
+        this.deferLogging = deferLogging;
+    }
+
+    @Override
+    public synchronized boolean test(Map<String, ?> map) {
+        KievDiagnostic diagnostic = KievDiagnostic.fromMap(map);
+        if (diagnostic.getKind() == KievDiagnostic.Kind.ERROR)
+            errorCount++;
+        else if (diagnostic.getKind() == KievDiagnostic.Kind.WARNING)
+            warningCount++;
+        if (!deferLogging)
+            log(diagnostic);
+        if (diagnostics.size() < MAX_BUFFERED_DIAGNOSTICS)
+            diagnostics.add(diagnostic);
+        if (isAborted()) {
+            if (deferLogging)
+                LOGGER.info("Stopping Kiev compilation after {} errors", errorCount);
+            else
+                LOGGER.error("Stopping Kiev compilation after {} errors", errorCount);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Logs the diagnostic at the level of its kind.
+     */
+    static void log(KievDiagnostic diagnostic) {
+        switch (diagnostic.getKind()) {
+            case ERROR:
+                LOGGER.error(diagnostic.toString());
+                break;
+            case WARNING:
+                LOGGER.warn(diagnostic.toString());
+                break;
+            default:
+                LOGGER.info(diagnostic.toString());
+        }
+    }
+
+    synchronized boolean isAborted() {
+        return maxErrors > 0 && errorCount >= maxErrors;
+    }
+
+    synchronized int getErrorCount() {
+        return errorCount;
+    }
+
+    synchronized int getWarningCount() {
+        return warningCount;
+    }
+
+    synchronized List<KievDiagnostic> getDiagnostics() {
+        return new ArrayList<>(diagnostics);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Content hashes of classpath entries, memoized by path, size and modification time,
+ * so every jar is read at most once during the lifetime of the hasher.
+ */
+class KievFileHasher {
+    private final Map<FileStamp, String> fileHashes = new ConcurrentHashMap<>();
+
+    /**
+     * Content hash of a jar, or of all files in a directory, as a hex string.
+     */
+    String hash(File file) {
+        FileStamp stamp = new FileStamp(file);
+        return fileHashes.computeIfAbsent(stamp, s -> {
+            MessageDigest digest = newDigest();
+            try {
+                if (file.isDirectory()) {
+                    try (Stream<Path> paths = Files.walk(file.toPath())) {
+                        for (Path p : (Iterable<Path>) paths.filter(Files::isRegularFile).sorted()::iterator) {
+                            digest.update(file.toPath().relativize(p).toString().getBytes(StandardCharsets.UTF_8));
+                            updateDigest(digest, p);
+                        }
+                    }
+                } else if (file.isFile()) {
+                    updateDigest(digest, file.toPath());
+                }
+            } catch (IOException e) {
+                // Fall back to the file stamp, a missing or unreadable entry just gets a hash of its own
+                digest.update(stamp.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            return toHex(digest.digest());
+        });
+    }
+
+    private static void updateDigest(MessageDigest digest, Path path) throws IOException {
+        byte[] buffer = new byte[8192];
+        try (InputStream in = Files.newInputStream(path)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static final class FileStamp {
+        private final String path;
+        private final long length;
+        private final long lastModified;
+
+        FileStamp(File file) {
+            this.path = file.getAbsolutePath();
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FileStamp)) {
+                return false;
+            }
+            FileStamp other = (FileStamp) o;
+            return path.equals(other.path) && length == other.length && lastModified == other.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, length, lastModified);
+        }
+
+        @Override
+        public String toString() {
+            return path + ':' + length + ':' + lastModified;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.symade.kiev.gradle.api.plugins.KievPlugin;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The peak heap usage of the previous forked Kiev compilations, by destination directory, which stands for the compile task.
+ * The number of source files and the size of the classpath of the compilation are recorded with the peak, so the heap of
+ * a compilation which grew since can be scaled up. A task may run several compilations in one build, e.g. a retry with
+ * a full classpath; the entry of the task holds the largest of them.
+ */
+class KievHeapHistory {
+    private static final Logger LOGGER = Logging.getLogger(KievPlugin.class);
+    private static final String HEADER = "# Kiev heap history 1";
+
+    private final File file;
+    private final Map<String, Entry> entries = new TreeMap<>();
+    private final Set<String> recorded = new HashSet<>();
+    private boolean changed;
+
+    KievHeapHistory(File file) {
+        this.file = file;
+        read();
+    }
+
+    /**
+     * The expected peak heap usage of the compilation, or zero when there is no history for it.
+     */
+    synchronized long estimatePeakHeapBytes(String key, int sourceFiles, long classpathBytes) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return 0;
+        }
+        // the heap grows with the sources compiled and the classes loaded from the classpath, it is not scaled down
+        double scale = 1;
+        if (entry.sourceFiles > 0) {
+            scale = Math.max(scale, (double) sourceFiles / entry.sourceFiles);
+        }
+        if (entry.classpathBytes > 0) {
+            scale = Math.max(scale, (double) classpathBytes / entry.classpathBytes);
+        }
+        return (long) (entry.peakHeapBytes * scale);
+    }
+
+    synchronized void record(String key, int sourceFiles, long classpathBytes, long peakHeapBytes) {
+        // the first compilation of the build replaces the entry of the previous build, later ones only raise it
+        Entry previous = entries.get(key);
+        if (recorded.add(key) || previous == null || peakHeapBytes > previous.peakHeapBytes) {
+            entries.put(key, new Entry(sourceFiles, classpathBytes, peakHeapBytes));
+            changed = true;
+        }
+    }
+
+    private void read() {
+        if (!file.isFile()) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(in.readLine())) {
+                return;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\t", 4);
+                if (parts.length == 4) {
+                    entries.put(parts[3], new Entry(Integer.parseInt(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.info("Cannot read the Kiev heap history {}, compiler daemons get the default heap size", file, e);
+            entries.clear();
+        }
+    }
+
+    synchronized void write() {
+        if (!changed) {
+            return;
+        }
+        file.getParentFile().mkdirs();
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (Writer out = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+                out.write(HEADER);
+                out.write('\n');
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    out.write(entry.sourceFiles + "\t" + entry.classpathBytes + '\t' + entry.peakHeapBytes + '\t' + e.getKey() + '\n');
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            changed = false;
+        } catch (IOException e) {
+            LOGGER.warn("Cannot write the Kiev heap history to {}", file, e);
+        }
+    }
+
+    /**
+     * The key of a compilation in the history.
+     */
+    static String keyOf(KievJavaJointCompileSpec spec) {
+        return spec.getDestinationDir().getAbsolutePath();
+    }
+
+    /**
+     * The total size of the jars on the classpath. Class directories are not counted, to keep it cheap.
+     */
+    static long classpathBytes(@Nullable Iterable<File> classpath) {
+        long bytes = 0;
+        if (classpath != null) {
+            for (File f : classpath) {
+                if (f.isFile()) {
+                    bytes += f.length();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static final class Entry {
+        private final int sourceFiles;
+        private final long classpathBytes;
+        private final long peakHeapBytes;
+
+        Entry(int sourceFiles, long classpathBytes, long peakHeapBytes) {
+            this.sourceFiles = sourceFiles;
+            this.classpathBytes = classpathBytes;
+            this.peakHeapBytes = peakHeapBytes;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits Kiev sources into partitions which can be compiled independently.
+ *
+ * <p>The unit of partitioning is a package, since sources of one package may use each other without imports.
+ * A package depends on another one if its sources mention the other package's name as a qualifier, which covers
+ * imports as well as fully qualified references. Mutually dependent packages (strongly connected components of
+ * this graph) end up in the same partition. Partitions are grouped into waves: a partition only depends on
+ * partitions of earlier waves, so all partitions of one wave can be compiled concurrently once the earlier
+ * waves are compiled.
+ */
+class KievSourcePartitioner {
+    private static final Pattern PACKAGE = Pattern.compile("^\\s*package\\s+([\\w.]+)\\s*;", Pattern.MULTILINE);
+
+    private final Map<String, List<File>> sourcesByPackage = new LinkedHashMap<>();
+    private final Map<String, Set<String>> dependencies = new HashMap<>();
+
+    private KievSourcePartitioner() {
+    }
+
+    /**
+     * Partitions the given sources, returning the waves of partitions in compilation order.
+     * Each wave has at most {@code maxPartitionsPerWave} partitions.
+     */
+    static List<List<List<File>>> partition(Collection<File> sources, Charset charset, int maxPartitionsPerWave) {
+        KievSourcePartitioner partitioner = new KievSourcePartitioner();
+        partitioner.buildGraph(sources, charset);
+        return partitioner.waves(maxPartitionsPerWave);
+    }
+
+    private void buildGraph(Collection<File> sources, Charset charset) {
+        Map<File, String> contents = new HashMap<>();
+        for (File source : sources) {
+            String content;
+            try {
+                content = new String(Files.readAllBytes(source.toPath()), charset);
+            } catch (IOException e) {
+                // the compiler will report the problem
+                content = "";
+            }
+            Matcher m = PACKAGE.matcher(content);
+            String pkg = m.find() ? m.group(1) : "";
+            sourcesByPackage.computeIfAbsent(pkg, p -> new ArrayList<>()).add(source);
+            contents.put(source, content);
+        }
+
+        List<String> packages = new ArrayList<>(sourcesByPackage.keySet());
+        packages.remove("");
+        if (packages.isEmpty()) {
+            return;
+        }
+        // longest names first, so 'a.b.C' is attributed to package 'a.b' rather than 'a'
+        packages.sort(Comparator.comparingInt(String::length).reversed());
+        StringBuilder alternatives = new StringBuilder();
+        for (String pkg : packages) {
+            if (alternatives.length() > 0) {
+                alternatives.append('|');
+            }
+            alternatives.append(Pattern.quote(pkg));
+        }
+        Pattern reference = Pattern.compile("(?<![\\w.])(" + alternatives + ")\\.[\\w*]");
+
+        for (Map.Entry<String, List<File>> e : sourcesByPackage.entrySet()) {
+            Set<String> deps = dependencies.computeIfAbsent(e.getKey(), p -> new HashSet<>());
+            for (File source : e.getValue()) {
+                Matcher m = reference.matcher(contents.get(source));
+                while (m.find()) {
+                    deps.add(m.group(1));
+                }
+            }
+            deps.remove(e.getKey());
+        }
+    }
+
+    private List<List<List<File>>> waves(int maxPartitionsPerWave) {
+        List<List<String>> components = new Tarjan().run();
+
+        // components come in reverse topological order, i.e. dependencies first
+        Map<String, Integer> levels = new HashMap<>();
+        Map<Integer, List<List<File>>> componentsByLevel = new TreeMap<>();
+        for (List<String> component : components) {
+            int level = 0;
+            for (String pkg : component) {
+                for (String dep : dependencies.getOrDefault(pkg, Collections.emptySet())) {
+                    Integer depLevel = levels.get(dep);
+                    if (depLevel != null) {
+                        level = Math.max(level, depLevel + 1);
+                    }
+                }
+            }
+            List<File> files = new ArrayList<>();
+            for (String pkg : component) {
+                levels.put(pkg, level);
+                files.addAll(sourcesByPackage.get(pkg));
+            }
+            componentsByLevel.computeIfAbsent(level, l -> new ArrayList<>()).add(files);
+        }
+
+        List<List<List<File>>> waves = new ArrayList<>();
+        for (List<List<File>> wave : componentsByLevel.values()) {
+            waves.add(pack(wave, maxPartitionsPerWave));
+        }
+        return waves;
+    }
+
+    /**
+     * Packs the components of a wave into at most {@code maxPartitions} partitions of similar size,
+     * largest components first.
+     */
+    private static List<List<File>> pack(List<List<File>> components, int maxPartitions) {
+        components.sort(Comparator.comparingInt((List<File> c) -> c.size()).reversed());
+        int count = Math.max(1, Math.min(maxPartitions, components.size()));
+        List<List<File>> partitions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (List<File> component : components) {
+            List<File> smallest = partitions.get(0);
+            for (List<File> p : partitions) {
+                if (p.size() < smallest.size()) {
+                    smallest = p;
+                }
+            }
+            smallest.addAll(component);
+        }
+        return partitions;
+    }
+
+    /**
+     * Tarjan's strongly connected components algorithm over the package graph.
+     */
+    private class Tarjan {
+        private final Map<String, Integer> index = new HashMap<>();
+        private final Map<String, Integer> lowLink = new HashMap<>();
+        private final Deque<String> stack = new ArrayDeque<>();
+        private final Set<String> onStack = new HashSet<>();
+        private final List<List<String>> components = new ArrayList<>();
+
+        List<List<String>> run() {
+            for (String pkg : sourcesByPackage.keySet()) {
+                if (!index.containsKey(pkg)) {
+                    visit(pkg);
+                }
+            }
+            return components;
+        }
+
+        private void visit(String pkg) {
+            index.put(pkg, index.size());
+            lowLink.put(pkg, index.get(pkg));
+            stack.push(pkg);
+            onStack.add(pkg);
+            for (String dep : dependencies.getOrDefault(pkg, Collections.emptySet())) {
+                if (!index.containsKey(dep)) {
+                    visit(dep);
+                    lowLink.put(pkg, Math.min(lowLink.get(pkg), lowLink.get(dep)));
+                } else if (onStack.contains(dep)) {
+                    lowLink.put(pkg, Math.min(lowLink.get(pkg), index.get(dep)));
+                }
+            }
+            if (lowLink.get(pkg).equals(index.get(pkg))) {
+                List<String> component = new ArrayList<>();
+                String member;
+                do {
+                    member = stack.pop();
+                    onStack.remove(member);
+                    component.add(member);
+                } while (!member.equals(pkg));
+                components.add(component);
+            }
+        }
+    }
+}
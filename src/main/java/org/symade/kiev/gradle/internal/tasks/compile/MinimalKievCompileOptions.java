@@ -25,8 +25,14 @@ import java.util.*;
 
 public class MinimalKievCompileOptions implements Serializable {
     private boolean failOnError;
+    private boolean fork;
+    private MinimalKievCompilerDaemonForkOptions forkOptions;
+    private int maxParallelPartitions;
     private boolean verbose;
     private boolean listFiles;
+    private boolean jointCompilation;
+    private int maxErrors;
+    private boolean deferDiagnostics;
     private String encoding;
     private List<String> fileExtensions;
     private Map<String, Boolean> optimizationOptions;
@@ -36,8 +42,13 @@ public class MinimalKievCompileOptions implements Serializable {
 
     public MinimalKievCompileOptions(KievCompileOptions compileOptions) {
         this.failOnError = compileOptions.isFailOnError();
+        this.fork = compileOptions.isFork();
+        this.forkOptions = new MinimalKievCompilerDaemonForkOptions(compileOptions.getForkOptions());
+        this.maxParallelPartitions = compileOptions.getMaxParallelPartitions();
         this.verbose = compileOptions.isVerbose();
         this.listFiles = compileOptions.isListFiles();
+        this.jointCompilation = compileOptions.isJointCompilation();
+        this.maxErrors = compileOptions.getMaxErrors();
         this.encoding = compileOptions.getEncoding();
         this.fileExtensions = new ArrayList<>(compileOptions.getFileExtensions());
         this.optimizationOptions = new HashMap<>();
@@ -57,6 +68,30 @@ public class MinimalKievCompileOptions implements Serializable {
         this.failOnError = failOnError;
     }
 
+    public boolean isFork() {
+        return fork;
+    }
+
+    public void setFork(boolean fork) {
+        this.fork = fork;
+    }
+
+    public MinimalKievCompilerDaemonForkOptions getForkOptions() {
+        return forkOptions;
+    }
+
+    public void setForkOptions(MinimalKievCompilerDaemonForkOptions forkOptions) {
+        this.forkOptions = forkOptions;
+    }
+
+    public int getMaxParallelPartitions() {
+        return maxParallelPartitions;
+    }
+
+    public void setMaxParallelPartitions(int maxParallelPartitions) {
+        this.maxParallelPartitions = maxParallelPartitions;
+    }
+
     public boolean isVerbose() {
         return verbose;
     }
@@ -73,6 +108,33 @@ public class MinimalKievCompileOptions implements Serializable {
         this.listFiles = listFiles;
     }
 
+    public boolean isJointCompilation() {
+        return jointCompilation;
+    }
+
+    public void setJointCompilation(boolean jointCompilation) {
+        this.jointCompilation = jointCompilation;
+    }
+
+    public int getMaxErrors() {
+        return maxErrors;
+    }
+
+    public void setMaxErrors(int maxErrors) {
+        this.maxErrors = maxErrors;
+    }
+
+    /**
+     * Whether the diagnostics are only kept for the result instead of being logged as they arrive.
+     */
+    public boolean isDeferDiagnostics() {
+        return deferDiagnostics;
+    }
+
+    public void setDeferDiagnostics(boolean deferDiagnostics) {
+        this.deferDiagnostics = deferDiagnostics;
+    }
+
     public String getEncoding() {
         return encoding;
     }
@@ -17,13 +17,24 @@
 package org.symade.kiev.gradle.internal.tasks.compile;
 
 import org.gradle.api.internal.tasks.compile.MinimalCompilerDaemonForkOptions;
-import org.gradle.api.tasks.compile.GroovyForkOptions;
+import org.symade.kiev.gradle.api.tasks.compile.KievForkOptions;
 
 import java.io.Serializable;
 
 public class MinimalKievCompilerDaemonForkOptions extends MinimalCompilerDaemonForkOptions implements Serializable {
-    public MinimalKievCompilerDaemonForkOptions(GroovyForkOptions forkOptions) {
+    private boolean classDataSharing;
+
+    public MinimalKievCompilerDaemonForkOptions(KievForkOptions forkOptions) {
         super(forkOptions);
         setJvmArgs(forkOptions.getAllJvmArgs());
+        this.classDataSharing = forkOptions.isClassDataSharing();
+    }
+
+    public boolean isClassDataSharing() {
+        return classDataSharing;
+    }
+
+    public void setClassDataSharing(boolean classDataSharing) {
+        this.classDataSharing = classDataSharing;
     }
 }
@@ -24,6 +24,8 @@ import org.gradle.util.internal.CollectionUtils;
 import org.symade.kiev.gradle.api.plugins.KievPlugin;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A Groovy {@link Compiler} which does some normalization of the compile configuration and behaviour before delegating to some other compiler.
@@ -46,22 +48,25 @@ public class NormalizingKievCompiler implements Compiler<KievJavaJointCompileSpe
     }
 
     private void resolveAndFilterSourceFiles(final KievJavaJointCompileSpec spec) {
-//        final List<String> fileExtensions = CollectionUtils.collect(spec.getKievCompileOptions().getFileExtensions(), extension -> '.' + extension);
-//        Iterable<File> filtered = Iterables.filter(spec.getSourceFiles(), new Predicate<File>() {
-//            @Override
-//            public boolean apply(File element) {
-//                for (String fileExtension : fileExtensions) {
-//                    if (hasExtension(element, fileExtension)) {
-//                        return true;
-//                    }
-//                }
-//                return false;
-//            }
-//        });
-//
-//        spec.setSourceFiles(ImmutableSet.copyOf(filtered));
+        final List<String> fileExtensions = CollectionUtils.collect(spec.getKievCompileOptions().getFileExtensions(), extension -> '.' + extension);
+        // copy the source files, so the spec is serializable when handed to a compiler daemon
+        List<File> sourceFiles = new ArrayList<>();
+        for (File f : spec.getSourceFiles()) {
+            if (hasExtension(f, fileExtensions))
+                sourceFiles.add(f);
+            else
+                LOGGER.debug("Not compiling {}, its extension is not one of {}", f, spec.getKievCompileOptions().getFileExtensions());
+        }
+        spec.setSourceFiles(sourceFiles);
+    }
 
-        spec.setSourceFiles(spec.getSourceFiles());
+    private static boolean hasExtension(File file, List<String> fileExtensions) {
+        for (String fileExtension : fileExtensions) {
+            if (file.getName().endsWith(fileExtension)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private void resolveNonStringsInCompilerArgs(KievJavaJointCompileSpec spec) {
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import org.gradle.api.internal.tasks.compile.ApiCompilerResult;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.tasks.WorkResult;
+import org.gradle.api.tasks.WorkResults;
+import org.gradle.language.base.internal.compile.Compiler;
+import org.symade.kiev.gradle.api.plugins.KievPlugin;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Kiev {@link Compiler} which splits the sources into independent partitions (see {@link KievSourcePartitioner})
+ * and compiles them concurrently, each partition by its own compiler instance.
+ *
+ * <p>All partitions write into the destination directory, which is put on the classpath of the partitions
+ * compiled later. Every partition gets its own temporary directory.
+ */
+public class ParallelKievCompiler implements Compiler<KievJavaJointCompileSpec> {
+    private static final Logger LOGGER = Logging.getLogger(KievPlugin.class);
+
+    private final Compiler<KievJavaJointCompileSpec> delegate;
+
+    public ParallelKievCompiler(Compiler<KievJavaJointCompileSpec> delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public WorkResult execute(KievJavaJointCompileSpec spec) {
+        int maxParallelPartitions = spec.getKievCompileOptions().getMaxParallelPartitions();
+        String encoding = spec.getKievCompileOptions().getEncoding();
+        Charset charset = encoding == null ? Charset.defaultCharset() : Charset.forName(encoding);
+        List<File> sources = new ArrayList<>();
+        spec.getSourceFiles().forEach(sources::add);
+
+        List<List<List<File>>> waves = KievSourcePartitioner.partition(sources, charset, maxParallelPartitions);
+        if (waves.size() == 1 && waves.get(0).size() == 1) {
+            return delegate.execute(spec);
+        }
+        if (LOGGER.isInfoEnabled()) {
+            int partitions = 0;
+            for (List<List<File>> wave : waves) {
+                partitions += wave.size();
+            }
+            LOGGER.info("Compiling {} Kiev source file(s) in {} partition(s), {} wave(s)", sources.size(), partitions, waves.size());
+        }
+
+        List<File> classpath = new ArrayList<>();
+        classpath.add(spec.getDestinationDir());
+        classpath.addAll(spec.getCompileClasspath());
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(maxParallelPartitions, r -> {
+            Thread thread = new Thread(r, "Kiev compiler " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        KievCompileResult result = new KievCompileResult(new KievCompileMetrics());
+        boolean didWork = false;
+        try {
+            int partitionIndex = 0;
+            for (List<List<File>> wave : waves) {
+                List<Future<WorkResult>> futures = new ArrayList<>();
+                for (List<File> partition : wave) {
+                    KievJavaJointCompileSpec partitionSpec = copyOf(spec);
+                    File tempDir = new File(spec.getTempDir(), "partition-" + partitionIndex++);
+                    tempDir.mkdirs();
+                    partitionSpec.setTempDir(tempDir);
+                    partitionSpec.setSourceFiles(partition);
+                    partitionSpec.setCompileClasspath(classpath);
+                    futures.add(executor.submit(() -> delegate.execute(partitionSpec)));
+                }
+
+                RuntimeException failure = null;
+                for (Future<WorkResult> future : futures) {
+                    try {
+                        WorkResult partitionResult = future.get();
+                        didWork |= partitionResult.getDidWork();
+                        if (partitionResult instanceof ApiCompilerResult) {
+                            result.getSourceClassesMapping().putAll(((ApiCompilerResult) partitionResult).getSourceClassesMapping());
+                        }
+                        KievCompileMetrics partitionMetrics = KievCompileResult.metricsOf(partitionResult);
+                        if (partitionMetrics != null) {
+                            result.getMetrics().add(partitionMetrics);
+                        }
+                        if (partitionResult instanceof KievCompileResult) {
+                            result.getDiagnostics().addAll(((KievCompileResult) partitionResult).getDiagnostics());
+                        }
+                    } catch (ExecutionException e) {
+                        RuntimeException cause = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+                        if (failure == null) {
+                            failure = cause;
+                        } else {
+                            failure.addSuppressed(cause);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("Interrupted while compiling Kiev sources", e);
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return didWork ? result : WorkResults.didWork(false);
+    }
+
+    /**
+     * Deep copy of the spec, so partitions compiled concurrently do not share mutable state.
+     * The spec is serializable anyway, since it is sent to compiler daemons.
+     */
+    static KievJavaJointCompileSpec copyOf(KievJavaJointCompileSpec spec) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(spec);
+            }
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())) {
+                @Override
+                protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                    return Class.forName(desc.getName(), false, ParallelKievCompiler.class.getClassLoader());
+                }
+            }) {
+                return (KievJavaJointCompileSpec) in.readObject();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException("Cannot copy Kiev compile spec", e);
+        }
+    }
+}
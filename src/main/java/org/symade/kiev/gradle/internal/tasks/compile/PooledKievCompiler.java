@@ -0,0 +1,66 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import org.gradle.api.BuildCancelledException;
+import org.gradle.api.internal.tasks.compile.CompilationFailedException;
+import org.gradle.api.tasks.WorkResult;
+import org.gradle.initialization.BuildCancellationToken;
+import org.gradle.language.base.internal.compile.Compiler;
+
+import javax.annotation.Nullable;
+
+/**
+ * A Kiev {@link Compiler} which runs forked compilations in the daemons of a {@link KievCompilerDaemonPool},
+ * waiting for a free daemon first.
+ */
+public class PooledKievCompiler implements Compiler<KievJavaJointCompileSpec> {
+    private final Compiler<KievJavaJointCompileSpec> delegate;
+    private final KievCompilerDaemonPool daemonPool;
+    private final BuildCancellationToken cancellationToken;
+
+    public PooledKievCompiler(Compiler<KievJavaJointCompileSpec> delegate, KievCompilerDaemonPool daemonPool, @Nullable BuildCancellationToken cancellationToken) {
+        this.delegate = delegate;
+        this.daemonPool = daemonPool;
+        this.cancellationToken = cancellationToken;
+    }
+
+    @Override
+    public WorkResult execute(KievJavaJointCompileSpec spec) {
+        try (KievCompilerDaemonPool.Lease lease = daemonPool.acquire(spec, cancellationToken)) {
+            WorkResult result;
+            try {
+                result = delegate.execute(spec);
+            } catch (CompilationFailedException e) {
+                // compile errors leave the daemon healthy
+                lease.completed(null);
+                throw e;
+            } catch (BuildCancelledException e) {
+                // a cancelled compilation says nothing about the health of the daemon
+                throw e;
+            } catch (RuntimeException e) {
+                if (cancellationToken != null && cancellationToken.isCancellationRequested()) {
+                    throw e;
+                }
+                lease.failed(e, spec.getKievCompileOptions().getForkOptions().getMemoryMaximumSize());
+                throw e;
+            }
+            lease.completed(KievCompileResult.metricsOf(result));
+            return result;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import org.gradle.api.internal.tasks.compile.CompilationFailedException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.tasks.WorkResult;
+import org.gradle.language.base.internal.compile.Compiler;
+import org.symade.kiev.gradle.api.plugins.KievPlugin;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A Kiev {@link Compiler} which leaves the jars the previous compilation did not use off the compile classpath.
+ *
+ * <p>After a compilation, the classes referenced by the compiled classes are looked up in the jars of the classpath, and the
+ * jars which provide any of them are recorded in the usage file, together with the list of all jars of the classpath.
+ * The next compilation with the same jars on its classpath only gets the used jars; directories are always kept.
+ *
+ * <p>A compiler may need classes which the compiled classes do not refer to, e.g. the supertypes of the classes they use.
+ * So when a compilation against the pruned classpath fails, it is run again with the full classpath, and if that succeeds,
+ * the classpath is not pruned again until its jars change. The diagnostics of the compilation against the pruned classpath
+ * are held back until it succeeds, those of a failed one are only logged at info level.
+ */
+public class PruningKievCompiler implements Compiler<KievJavaJointCompileSpec> {
+    private static final Logger LOGGER = Logging.getLogger(KievPlugin.class);
+    private static final String USAGE_HEADER = "# Kiev classpath usage 1";
+
+    private final Compiler<KievJavaJointCompileSpec> delegate;
+    private final File usageFile;
+
+    public PruningKievCompiler(Compiler<KievJavaJointCompileSpec> delegate, File usageFile) {
+        this.delegate = delegate;
+        this.usageFile = usageFile;
+    }
+
+    @Override
+    public WorkResult execute(KievJavaJointCompileSpec spec) {
+        List<File> classpath = spec.getCompileClasspath();
+        List<String> jars = jarsOf(classpath);
+        Set<String> usedJars = readUsedJars(jars);
+        if (usedJars == null) {
+            WorkResult result = delegate.execute(spec);
+            recordUsage(spec, jars, jars);
+            return result;
+        }
+        if (usedJars.size() == jars.size()) {
+            // nothing to prune, or pruning failed before with these jars
+            return delegate.execute(spec);
+        }
+
+        List<File> prunedClasspath = new ArrayList<>();
+        for (File entry : classpath) {
+            if (!entry.isFile() || usedJars.contains(entry.getAbsolutePath())) {
+                prunedClasspath.add(entry);
+            }
+        }
+        LOGGER.info("Compiling against {} of {} classpath jar(s) used by the previous compilation", jarsOf(prunedClasspath).size(), jars.size());
+        KievJavaJointCompileSpec prunedSpec = ParallelKievCompiler.copyOf(spec);
+        prunedSpec.setCompileClasspath(prunedClasspath);
+        prunedSpec.getKievCompileOptions().setDeferDiagnostics(true);
+        WorkResult result;
+        try {
+            result = delegate.execute(prunedSpec);
+        } catch (CompilationFailedException e) {
+            // compilers which print their diagnostics themselves have printed them already
+            LOGGER.lifecycle("Kiev compilation against the pruned classpath failed, compiling again with the full classpath; errors reported so far come from the pruned compilation");
+            e.getCompilerPartialResult().ifPresent(partial -> {
+                if (partial instanceof KievCompileResult) {
+                    for (KievDiagnostic diagnostic : ((KievCompileResult) partial).getDiagnostics()) {
+                        LOGGER.info("Pruned classpath: {}", diagnostic);
+                    }
+                }
+            });
+            WorkResult fullResult = delegate.execute(spec);
+            writeUsage(jars, new HashSet<>(jars));
+            return fullResult;
+        }
+        if (result instanceof KievCompileResult) {
+            ((KievCompileResult) result).getDiagnostics().forEach(KievDiagnosticCollector::log);
+        }
+        recordUsage(spec, jars, jarsOf(prunedClasspath));
+        return result;
+    }
+
+    /**
+     * Records the jars among the candidates which provide a class referenced by the compiled classes.
+     */
+    private void recordUsage(KievJavaJointCompileSpec spec, List<String> jars, List<String> candidates) {
+        long started = System.nanoTime();
+        Set<String> referencedClasses = new HashSet<>();
+        for (KievClassAnalysis analysis : KievClassAnalyzer.analyzeDirectory(spec.getDestinationDir(), f -> true).values()) {
+            referencedClasses.addAll(analysis.getDependencies());
+        }
+        Set<String> usedJars = new HashSet<>();
+        for (String jar : candidates) {
+            if (providesAny(new File(jar), referencedClasses)) {
+                usedJars.add(jar);
+            }
+        }
+        writeUsage(jars, usedJars);
+        LOGGER.info("{} of {} classpath jar(s) are used, analyzed in {} ms", usedJars.size(), jars.size(), (System.nanoTime() - started) / 1_000_000);
+    }
+
+    private static boolean providesAny(File jar, Set<String> classNames) {
+        try (ZipFile zip = new ZipFile(jar)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                if (name.endsWith(".class") && classNames.contains(name.substring(0, name.length() - ".class".length()).replace('/', '.'))) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            // keep what cannot be read, the compiler may read it
+            return true;
+        }
+    }
+
+    private static List<String> jarsOf(List<File> classpath) {
+        List<String> jars = new ArrayList<>();
+        for (File entry : classpath) {
+            if (entry.isFile()) {
+                jars.add(entry.getAbsolutePath());
+            }
+        }
+        return jars;
+    }
+
+    /**
+     * The jars used by the previous compilation, or {@code null} when the previous compilation had other jars on its classpath.
+     */
+    @Nullable
+    private Set<String> readUsedJars(List<String> jars) {
+        if (!usageFile.isFile()) {
+            return null;
+        }
+        try (BufferedReader in = Files.newBufferedReader(usageFile.toPath(), StandardCharsets.UTF_8)) {
+            if (!USAGE_HEADER.equals(in.readLine())) {
+                return null;
+            }
+            Set<String> previousJars = new HashSet<>();
+            Set<String> usedJars = new HashSet<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.length() < 2) {
+                    continue;
+                }
+                previousJars.add(line.substring(2));
+                if (line.charAt(0) == '+') {
+                    usedJars.add(line.substring(2));
+                }
+            }
+            return previousJars.equals(new HashSet<>(jars)) ? usedJars : null;
+        } catch (IOException e) {
+            LOGGER.info("Cannot read the Kiev classpath usage {}, compiling with the full classpath", usageFile, e);
+            return null;
+        }
+    }
+
+    private void writeUsage(List<String> jars, Set<String> usedJars) {
+        usageFile.getParentFile().mkdirs();
+        File tmp = new File(usageFile.getPath() + ".tmp");
+        try {
+            try (Writer out = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+                out.write(USAGE_HEADER);
+                out.write('\n');
+                for (String jar : jars) {
+                    out.write((usedJars.contains(jar) ? "+ " : "- ") + jar + '\n');
+                }
+            }
+            Files.move(tmp.toPath(), usageFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.info("Cannot write the Kiev classpath usage to {}", usageFile, e);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2024 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.symade.kiev.gradle.internal.tasks.compile;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.tasks.WorkResult;
+import org.gradle.language.base.internal.compile.Compiler;
+import org.gradle.util.internal.GFileUtils;
+import org.symade.kiev.gradle.api.plugins.KievPlugin;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A Kiev {@link Compiler} for full compilations, which compiles into a staging directory and then only replaces the
+ * files of the destination directory whose content has changed. Files which were not produced again are deleted.
+ * Unchanged class files keep their timestamps and are not written again, which spares the disk and the tasks
+ * consuming the classes.
+ *
+ * <p>A staged file of another size than its destination file is written without further comparison. Otherwise the
+ * content hash of the destination file is taken from an index, which records it together with the size and modification
+ * time of the file, so the destination file need not be read. A destination file without a hash in the index, or changed
+ * since, e.g. by an incremental compilation, is compared byte by byte; its hash is only recorded once it was found
+ * unchanged, so the files written anew are never hashed.
+ */
+public class StagingKievCompiler implements Compiler<KievJavaJointCompileSpec> {
+    private static final Logger LOGGER = Logging.getLogger(KievPlugin.class);
+    private static final String INDEX_HEADER = "# Kiev output index 1";
+    private static final String NO_HASH = "-";
+
+    private final Compiler<KievJavaJointCompileSpec> delegate;
+    private final File stagingDir;
+    private final File indexFile;
+
+    public StagingKievCompiler(Compiler<KievJavaJointCompileSpec> delegate, File stagingDir, File indexFile) {
+        this.delegate = delegate;
+        this.stagingDir = stagingDir;
+        this.indexFile = indexFile;
+    }
+
+    @Override
+    public WorkResult execute(KievJavaJointCompileSpec spec) {
+        File destinationDir = spec.getDestinationDir();
+        GFileUtils.deleteQuietly(stagingDir);
+        stagingDir.mkdirs();
+
+        WorkResult result;
+        spec.setDestinationDir(stagingDir);
+        try {
+            result = delegate.execute(spec);
+        } finally {
+            spec.setDestinationDir(destinationDir);
+        }
+
+        long started = System.nanoTime();
+        try {
+            update(destinationDir);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot copy the compiled Kiev classes to " + destinationDir, e);
+        } finally {
+            GFileUtils.deleteQuietly(stagingDir);
+        }
+        KievCompileMetrics metrics = KievCompileResult.metricsOf(result);
+        if (metrics != null) {
+            metrics.addOutputNanos(System.nanoTime() - started);
+        }
+        return result;
+    }
+
+    private void update(File destinationDir) throws IOException {
+        Map<String, IndexEntry> index = readIndex();
+        Map<String, IndexEntry> updatedIndex = new HashMap<>();
+        int written = 0;
+        for (Path staged : listFiles(stagingDir)) {
+            String relativePath = stagingDir.toPath().relativize(staged).toString().replace(File.separatorChar, '/');
+            File target = new File(destinationDir, relativePath);
+            String hash = NO_HASH;
+            if (target.isFile() && target.length() == Files.size(staged)) {
+                IndexEntry entry = index.get(relativePath);
+                byte[] content = Files.readAllBytes(staged);
+                if (entry != null && !entry.hash.equals(NO_HASH) && entry.matches(target)) {
+                    String stagedHash = hashOf(content);
+                    hash = stagedHash.equals(entry.hash) ? stagedHash : NO_HASH;
+                } else if (Arrays.equals(content, Files.readAllBytes(target.toPath()))) {
+                    hash = hashOf(content);
+                }
+            }
+            if (hash.equals(NO_HASH)) {
+                target.getParentFile().mkdirs();
+                Files.move(staged, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                written++;
+            }
+            updatedIndex.put(relativePath, new IndexEntry(hash, target.length(), target.lastModified()));
+        }
+
+        int deleted = 0;
+        if (destinationDir.isDirectory()) {
+            for (Path existing : listFiles(destinationDir)) {
+                String relativePath = destinationDir.toPath().relativize(existing).toString().replace(File.separatorChar, '/');
+                if (!updatedIndex.containsKey(relativePath)) {
+                    Files.delete(existing);
+                    deleted++;
+                }
+            }
+            deleteEmptyDirectories(destinationDir);
+        }
+        writeIndex(updatedIndex);
+        LOGGER.info("Wrote {} of {} compiled file(s) to {}, deleted {} stale file(s)", written, updatedIndex.size(), destinationDir, deleted);
+    }
+
+    private static String hashOf(byte[] content) {
+        return KievFileHasher.toHex(KievFileHasher.newDigest().digest(content));
+    }
+
+    private static List<Path> listFiles(File dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            return paths.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+    }
+
+    private static void deleteEmptyDirectories(File root) throws IOException {
+        List<Path> dirs;
+        try (Stream<Path> paths = Files.walk(root.toPath())) {
+            dirs = paths.filter(Files::isDirectory).sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        for (Path dir : dirs) {
+            String[] children = dir.toFile().list();
+            if (!dir.equals(root.toPath()) && children != null && children.length == 0) {
+                Files.delete(dir);
+            }
+        }
+    }
+
+    private Map<String, IndexEntry> readIndex() {
+        Map<String, IndexEntry> index = new HashMap<>();
+        if (!indexFile.isFile()) {
+            return index;
+        }
+        try (BufferedReader in = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            if (!INDEX_HEADER.equals(in.readLine())) {
+                return index;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ", 4);
+                if (parts.length == 4) {
+                    index.put(parts[3], new IndexEntry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.info("Cannot read the Kiev output index {}, all compiled files are written", indexFile, e);
+            index.clear();
+        }
+        return index;
+    }
+
+    private void writeIndex(Map<String, IndexEntry> index) throws IOException {
+        indexFile.getParentFile().mkdirs();
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            out.write(INDEX_HEADER);
+            out.write('\n');
+            for (Map.Entry<String, IndexEntry> e : index.entrySet()) {
+                IndexEntry entry = e.getValue();
+                out.write(entry.hash + ' ' + entry.size + ' ' + entry.lastModified + ' ' + e.getKey() + '\n');
+            }
+        }
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static final class IndexEntry {
+        private final String hash;
+        private final long size;
+        private final long lastModified;
+
+        IndexEntry(String hash, long size, long lastModified) {
+            this.hash = hash;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Whether the file is still the one written when the entry was recorded.
+         */
+        boolean matches(File file) {
+            return file.isFile() && file.length() == size && file.lastModified() == lastModified;
+        }
+    }
+}
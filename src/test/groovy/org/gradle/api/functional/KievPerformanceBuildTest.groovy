@@ -0,0 +1,38 @@
+package org.gradle.api.functional
+
+import org.gradle.api.performance.KievPerformanceBuild
+import org.gradle.testkit.runner.BuildResult
+import org.gradle.testkit.runner.GradleRunner
+
+import static org.gradle.testkit.runner.TaskOutcome.SUCCESS
+import static org.gradle.testkit.runner.TaskOutcome.UP_TO_DATE
+
+class KievPerformanceBuildTest extends AbstractKievPluginSpecification {
+
+    def 'generated performance build compiles and is up-to-date afterwards'() {
+        given:
+        File rootDir = new File(testProjectDir.root, 'performance')
+        new KievPerformanceBuild(projects: 2, sourcesPerProject: 30).generate(rootDir)
+
+        when:
+        GradleRunner runner = GradleRunner.create()
+                .withProjectDir(rootDir)
+                .withPluginClasspath()
+                .withArguments('assemble', '-s')
+
+        BuildResult result = runner.build()
+
+        then:
+        result.task(":p0:compileKiev").outcome == SUCCESS
+        result.task(":p1:compileKiev").outcome == SUCCESS
+        result.task(":p1:compileJava").outcome == SUCCESS
+        new File(rootDir, asPath(['p1'] + expectedOutputKievDir + ['main', 'bench', 'p1', 'k1', 'C4.class'])).exists()
+
+        when:
+        result = runner.build()
+
+        then:
+        result.task(":p0:compileKiev").outcome == UP_TO_DATE
+        result.task(":p1:compileKiev").outcome == UP_TO_DATE
+    }
+}
@@ -4,7 +4,9 @@ import org.gradle.testkit.runner.BuildResult
 import org.gradle.testkit.runner.GradleRunner
 import spock.lang.Unroll
 
+import static org.gradle.testkit.runner.TaskOutcome.FROM_CACHE
 import static org.gradle.testkit.runner.TaskOutcome.SUCCESS
+import static org.gradle.testkit.runner.TaskOutcome.UP_TO_DATE
 
 @Unroll
 class SimpleKievBuildTest extends AbstractKievPluginSpecification {
@@ -56,4 +58,335 @@ class SimpleKievBuildTest extends AbstractKievPluginSpecification {
         //gradleVersion << gradleVersionsToTest
     }
 
+    def 'report compile metrics'() {
+        given:
+        buildScript << getBasicBuildScriptForTesting()
+        simpleSource()
+
+        when:
+        BuildResult result = runner('compileKiev', '-is').build()
+
+        then:
+        result.task(":compileKiev").outcome == SUCCESS
+        def metrics = new File(testProjectDir.root, asPath('build', 'reports', 'kiev', 'compileKiev-metrics.json')).text
+        metrics.contains('"sourceFiles": 1')
+        // the heap peak of the build process is not measured, other work shares it
+        metrics.contains('"peakHeapBytes": null')
+    }
+
+    def 'compile in forked Kiev compiler daemon'() {
+        given:
+        configureCompileKiev """
+            kievOptions.fork = true
+            kievOptions.forkOptions.memoryMaximumSize = '512m'
+            """
+        simpleSource()
+        GradleRunner runner = runner('compileKiev', '--rerun-tasks', '-is')
+        runner.build()
+
+        when:
+        BuildResult result = runner.build()
+
+        then:
+        result.task(":compileKiev").outcome == SUCCESS
+        outputClass('example', 'gradle', 'Simple.class').exists()
+        // the daemon of the first build still holds the loaded compiler
+        !result.output.contains("Starting process 'Gradle Worker Daemon")
+        result.output.contains('Reusing Kiev compiler class loader')
+    }
+
+    def 'replace the compiler daemon after the configured number of compilations'() {
+        given:
+        configureCompileKiev """
+            kievOptions.fork = true
+            """
+        simpleSource()
+        // the daemons outlive the builds, replace the one earlier tests may have used
+        BuildResult replacing = runner('compileKiev', '--rerun-tasks', '-is', '-Pkiev.compiler.daemons=1', '-Pkiev.compiler.daemon.maxCompilations=1').build()
+        GradleRunner runner = runner('compileKiev', '--rerun-tasks', '-is', '-Pkiev.compiler.daemons=1', '-Pkiev.compiler.daemon.maxCompilations=2')
+
+        when:
+        BuildResult first = runner.build()
+        BuildResult second = runner.build()
+
+        then:
+        replacing.output.contains('Replacing Kiev compiler daemon 0 after 1 compilations')
+        first.task(":compileKiev").outcome == SUCCESS
+        !first.output.contains('Replacing Kiev compiler daemon')
+        // the daemon outlives the build and counts the compilations of both
+        second.task(":compileKiev").outcome == SUCCESS
+        second.output.contains('Replacing Kiev compiler daemon 0 after 2 compilations')
+        outputClass('example', 'gradle', 'Simple.class').exists()
+    }
+
+    def 'size the compiler daemon heap from the previous compilations'() {
+        given:
+        configureCompileKiev """
+            kievOptions.fork = true
+            """
+        simpleSource()
+        GradleRunner runner = runner('compileKiev', '--rerun-tasks', '-is')
+        runner.build()
+
+        when:
+        BuildResult result = runner.build()
+
+        then:
+        result.task(":compileKiev").outcome == SUCCESS
+        def sized = result.output =~ /Sized the heap of Kiev compiler daemon \d+ to (\d+) MB from the previous compilations/
+        sized.find()
+        // the automatic heap is a power of two of at least 256 MB
+        Integer.bitCount(sized.group(1) as int) == 1
+        (sized.group(1) as int) >= 256
+        // the peak measured in the daemon, keyed by the directory the task compiles into
+        def history = new File(testProjectDir.root, asPath('.gradle', 'kiev', 'heap-history.txt')).readLines().drop(1)*.split('\t')
+        history.size() == 1
+        (history[0][2] as long) > 0
+    }
+
+    def 'incremental compilation recompiles changed sources'() {
+        given:
+        configureCompileKiev """
+            options.incremental = true
+            """
+        File simple = simpleSource()
+        kievSource(['example', 'gradle', 'Other.kj'], """
+            package example.gradle;
+
+            class Other {}""")
+        GradleRunner runner = runner('compileKiev', '-is')
+        runner.build()
+        File otherClass = outputClass('example', 'gradle', 'Other.class')
+        // a recompilation would give the class a new timestamp
+        long otherTimestamp = otherClass.lastModified() - 60_000
+        otherClass.setLastModified(otherTimestamp)
+
+        when:
+        simple.text = """
+            package example.gradle;
+
+            class Simple { int x; }"""
+        BuildResult result = runner.build()
+
+        then:
+        result.task(":compileKiev").outcome == SUCCESS
+        result.output.contains('Kiev incremental compilation round 1: recompiling 1 of 2 source file(s)')
+        outputClass('example', 'gradle', 'Simple.class').exists()
+        otherClass.lastModified() == otherTimestamp
+    }
+
+    def 'compile independent packages in parallel'() {
+        given:
+        configureCompileKiev """
+            kievOptions.maxParallelPartitions = 2
+            """
+        kievSource(['example', 'first', 'First.kj'], """
+            package example.first;
+
+            class First {}""")
+        kievSource(['example', 'second', 'Second.kj'], """
+            package example.second;
+
+            class Second {}""")
+
+        when:
+        BuildResult result = runner('compileKiev', '-is').build()
+
+        then:
+        result.task(":compileKiev").outcome == SUCCESS
+        result.output.contains('Compiling 2 Kiev source file(s) in 2 partition(s), 1 wave(s)')
+        outputClass('example', 'first', 'First.class').exists()
+        outputClass('example', 'second', 'Second.class').exists()
+    }
+
+    def 'compile Java sources jointly with Kiev sources'() {
+        given:
+        configureCompileKiev """
+            kievOptions.jointCompilation = true
+            """
+        kievSource(['example', 'gradle', 'Simple.kj'], """
+            package example.gradle;
+
+            public class Simple {}""")
+        kievSource(['example', 'gradle', 'JavaUser.java'], """
+            package example.gradle;
+
+            public class JavaUser {
+                public Object create() { return new Simple(); }
+            }""")
+
+        when:
+        BuildResult result = runner('compileKiev', '-is').build()
+
+        then:
+        result.task(":compileKiev").outcome == SUCCESS
+        outputClass('example', 'gradle', 'Simple.class').exists()
+        outputClass('example', 'gradle', 'JavaUser.class').exists()
+        // compilers without stub generation compile the Java sources themselves
+        result.output.contains('Generated Kiev stubs in') || result.output.contains('compiling the Java sources with the Kiev compiler')
+        // the stubs are not part of the output
+        outputClass('example', 'gradle').list().toList().every { it.endsWith('.class') }
+    }
+
+    def 'files without a Kiev extension do not recompile'() {
+        given:
+        configureCompileKiev """
+            kievOptions.fileExtensions = ['kj']
+            """
+        File simple = simpleSource()
+        File descriptor = kievSource(['example', 'gradle', 'descriptor.xml'], '<descriptor/>')
+        GradleRunner runner = runner('compileKiev', '-is')
+        runner.build()
+
+        when:
+        descriptor.text = '<descriptor changed="true"/>'
+        BuildResult result = runner.build()
+
+        then:
+        result.task(":compileKiev").outcome == UP_TO_DATE
+
+        when:
+        simple.text = """
+            package example.gradle;
+
+            class Simple { int x; }"""
+        result = runner.build()
+
+        then:
+        result.task(":compileKiev").outcome == SUCCESS
+    }
+
+    def 'leave unused classpath jars off the classpath of the next compilation'() {
+        given:
+        File unusedJar = testProjectDir.newFile('unused.jar')
+        new java.util.zip.ZipOutputStream(new FileOutputStream(unusedJar)).withCloseable {
+            it.putNextEntry(new java.util.zip.ZipEntry('unused/Unused.class'))
+            it.closeEntry()
+        }
+        configureCompileKiev """
+            kievOptions.pruneClasspath = true
+            """
+        buildScript << """
+            dependencies {
+                implementation files('unused.jar')
+            }
+            """
+        File simple = simpleSource()
+        GradleRunner runner = runner('compileKiev', '-is')
+        runner.build()
+
+        when:
+        simple.text = """
+            package example.gradle;
+
+            class Simple { int x; }"""
+        BuildResult result = runner.build()
+
+        then:
+        result.task(":compileKiev").outcome == SUCCESS
+        def pruned = result.output =~ /Compiling against (\d+) of (\d+) classpath jar\(s\) used by the previous compilation/
+        pruned.find()
+        (pruned.group(1) as int) < (pruned.group(2) as int)
+        new File(testProjectDir.root, asPath('build', 'tmp', 'compileKiev', 'classpath-usage.txt')).readLines().contains('- ' + unusedJar.absolutePath)
+        outputClass('example', 'gradle', 'Simple.class').exists()
+    }
+
+    def 'reuse the configuration cache'() {
+        given:
+        buildScript << getBasicBuildScriptForTesting()
+        simpleSource()
+        GradleRunner runner = runner('compileKiev', '--configuration-cache', '-s')
+        BuildResult storing = runner.build()
+
+        when:
+        outputClass('example', 'gradle', 'Simple.class').delete()
+        BuildResult result = runner.build()
+
+        then:
+        // an entry stored with problems is reported as such
+        storing.output.contains('Configuration cache entry stored.')
+        result.output.contains('Reusing configuration cache.')
+        result.task(":compileKiev").outcome == SUCCESS
+        outputClass('example', 'gradle', 'Simple.class').exists()
+    }
+
+    def 'reuse compiled classes from the build cache in another checkout directory'() {
+        given:
+        File cacheDir = testProjectDir.newFolder('build-cache')
+        List<File> checkouts = [testProjectDir.newFolder('first'), testProjectDir.newFolder('second')]
+        checkouts.each { File dir ->
+            new File(dir, 'settings.gradle') << """
+                buildCache {
+                    local {
+                        directory = '${cacheDir.absolutePath.replace('\\', '/')}'
+                    }
+                }
+                """
+            new File(dir, 'build.gradle') << getBasicBuildScriptForTesting()
+            File source = new File(dir, asPath('src', 'main', 'kiev', 'example', 'gradle', 'Simple.kj'))
+            source.getParentFile().mkdirs()
+            source << """
+                package example.gradle;
+
+                class Simple {}"""
+        }
+
+        when:
+        BuildResult result = runner(checkouts[0], 'compileKiev', '--build-cache', '-s').build()
+
+        then:
+        result.task(":compileKiev").outcome == SUCCESS
+
+        when:
+        result = runner(checkouts[1], 'compileKiev', '--build-cache', '-s').build()
+
+        then:
+        result.task(":compileKiev").outcome == FROM_CACHE
+        File relocated = new File(checkouts[1], asPath(expectedOutputKievDir + ['main', 'example', 'gradle', 'Simple.class']))
+        relocated.bytes == new File(checkouts[0], asPath(expectedOutputKievDir + ['main', 'example', 'gradle', 'Simple.class'])).bytes
+        // the class must not refer to the checkout it was compiled in
+        !new String(relocated.bytes, 'ISO-8859-1').contains(checkouts[0].absolutePath)
+    }
+
+    /**
+     * Writes the basic build script, with the given configuration of the compileKiev task.
+     */
+    private void configureCompileKiev(String configuration) {
+        buildScript << getBasicBuildScriptForTesting()
+        buildScript << """
+            tasks.compileKiev {
+                ${configuration.trim()}
+            }
+            """
+    }
+
+    private File kievSource(List<String> path, String content) {
+        File source = new File(srcMainKiev, asPath(path))
+        source.getParentFile().mkdirs()
+        source << content
+        return source
+    }
+
+    private File simpleSource() {
+        return kievSource(['example', 'gradle', 'Simple.kj'], """
+            package example.gradle;
+
+            class Simple {}""")
+    }
+
+    private File outputClass(String... path) {
+        return new File(testProjectDir.root, asPath(expectedOutputKievDir + ['main'] + path.toList()))
+    }
+
+    private GradleRunner runner(String... arguments) {
+        return runner(testProjectDir.root, arguments)
+    }
+
+    private static GradleRunner runner(File projectDir, String... arguments) {
+        return GradleRunner.create()
+                .withProjectDir(projectDir)
+                .withPluginClasspath()
+                .withArguments(arguments)
+    }
+
 }
@@ -1,6 +1,7 @@
 package org.gradle.api.internal.tasks
 
 import org.symade.kiev.gradle.api.tasks.compile.KievCompile
+import org.symade.kiev.gradle.api.tasks.compile.KievWatch
 import org.symade.kiev.gradle.api.plugins.KievBasePlugin
 import org.gradle.api.Project
 import org.gradle.api.plugins.JavaBasePlugin
@@ -48,4 +49,13 @@ class KievBasePluginTest extends Specification {
         !task.dependsOn.contains('compileCustomJava')
     }
 
+    void addsWatchTaskToNewSourceSet() {
+        project.sourceSets.create('custom')
+        def task = project.tasks['customKievWatch']
+        expect:
+        task instanceof KievWatch
+        task.description == 'Watches the custom Kiev source and recompiles changed files.'
+        task.destinationDirectory.get().asFile == project.tasks['compileCustomKiev'].destinationDirectory.get().asFile
+    }
+
 }
@@ -0,0 +1,57 @@
+package org.gradle.api.internal.tasks
+
+import org.gradle.api.BuildCancelledException
+import org.gradle.initialization.DefaultBuildCancellationToken
+import org.symade.kiev.gradle.internal.tasks.compile.KievCompileCancellation
+import spock.lang.Specification
+
+class KievCompileCancellationTest extends Specification {
+
+    static class CancellableCompiler {
+        boolean cancelled
+
+        void cancel() {
+            cancelled = true
+        }
+    }
+
+    def 'cancelling the build cancels and interrupts the running compiler'() {
+        given:
+        def token = new DefaultBuildCancellationToken()
+        def compiler = new CancellableCompiler()
+        def cancellation = KievCompileCancellation.register(token, compiler)
+
+        when:
+        token.cancel()
+
+        then:
+        compiler.cancelled
+        Thread.currentThread().isInterrupted()
+
+        when:
+        cancellation.throwIfCancelled()
+
+        then:
+        thrown(BuildCancelledException)
+
+        when:
+        cancellation.close()
+
+        then:
+        !Thread.currentThread().isInterrupted()
+    }
+
+    def 'a closed cancellation leaves the compiler alone'() {
+        given:
+        def token = new DefaultBuildCancellationToken()
+        def compiler = new CancellableCompiler()
+        KievCompileCancellation.register(token, compiler).close()
+
+        when:
+        token.cancel()
+
+        then:
+        !compiler.cancelled
+        !Thread.currentThread().isInterrupted()
+    }
+}
@@ -0,0 +1,72 @@
+package org.gradle.api.internal.tasks
+
+import org.gradle.api.Project
+import org.gradle.testfixtures.ProjectBuilder
+import org.symade.kiev.gradle.internal.tasks.compile.KievCompileScheduler
+import spock.lang.Specification
+
+class KievCompileSchedulerTest extends Specification {
+
+    def 'computes the expected critical path from the compile history'() {
+        given:
+        Project project = ProjectBuilder.builder().build()
+        File historyFile = project.file('compile-history.txt')
+        // :c depends on :a, so the longest chain starting with :a is longer than :b alone
+        historyFile.text = '''# Kiev compile history 1
+:a\t100\t/out/a\t
+:b\t500\t/out/b\t
+:c\t1000\t/out/c\t:a
+'''
+
+        when:
+        KievCompileScheduler scheduler = scheduler(project, 'scheduler', historyFile)
+
+        then:
+        scheduler.getExpectedCriticalPathMillis(':a') == 1100
+        scheduler.getExpectedCriticalPathMillis(':b') == 500
+        scheduler.getExpectedCriticalPathMillis(':c') == 1000
+        scheduler.getExpectedCriticalPathMillis(':unknown') == 0
+    }
+
+    def 'records the dependencies and durations of compilations'() {
+        given:
+        Project project = ProjectBuilder.builder().build()
+        File historyFile = project.file('compile-history.txt')
+        historyFile.text = '''# Kiev compile history 1
+:a\t100\t/out/a\t
+'''
+        KievCompileScheduler scheduler = scheduler(project, 'scheduler', historyFile)
+
+        when:
+        scheduler.start(':b', new File('/out/b'), [new File('/out/a'), new File('/lib/other.jar')]).withCloseable {
+            Thread.sleep(20)
+            it.succeeded()
+        }
+        scheduler.start(':c', new File('/out/c'), [new File('/out/b')]).close()
+        scheduler.close()
+        List<String> lines = historyFile.readLines()
+        List<String> b = lines[2].split('\t') as List
+
+        then:
+        lines[0] == '# Kiev compile history 1'
+        lines[1] == ':a\t100\t/out/a\t'
+        b[0] == ':b'
+        b[1].toLong() >= 20
+        b[2] == new File('/out/b').path
+        b[3] == ':a'
+        // a failed compilation keeps its dependencies, but not its duration
+        lines[3] == ":c\t0\t${new File('/out/c').path}\t:b".toString()
+
+        when:
+        KievCompileScheduler next = scheduler(project, 'next', historyFile)
+
+        then:
+        next.getExpectedCriticalPathMillis(':a') >= 100 + 20
+    }
+
+    private static KievCompileScheduler scheduler(Project project, String name, File historyFile) {
+        project.gradle.sharedServices.registerIfAbsent(name, KievCompileScheduler) {
+            it.parameters.historyFile.set(historyFile)
+        }.get()
+    }
+}
@@ -0,0 +1,80 @@
+package org.gradle.api.internal.tasks
+
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import org.symade.kiev.gradle.internal.tasks.compile.KievCompilerCdsArchive
+import spock.lang.Specification
+
+class KievCompilerCdsArchiveTest extends Specification {
+
+    @Rule
+    TemporaryFolder tmp = new TemporaryFolder()
+
+    File cacheDir
+    List<File> kievClasspath
+
+    def setup() {
+        cacheDir = new File(tmp.root, 'cds')
+        File jar = tmp.newFile('symade.jar')
+        jar.text = 'compiler'
+        kievClasspath = [jar]
+    }
+
+    def 'does not share classes before JDK 13'() {
+        expect:
+        KievCompilerCdsArchive.jvmArgs(cacheDir, kievClasspath, 11, '11.0.20') == []
+    }
+
+    def 'lets one daemon of JDK 13 to 18 write the archive, then all use it'() {
+        when:
+        def writer = KievCompilerCdsArchive.jvmArgs(cacheDir, kievClasspath, 17, '17.0.8')
+        def concurrent = KievCompilerCdsArchive.jvmArgs(cacheDir, kievClasspath, 17, '17.0.8')
+
+        then:
+        writer.size() == 1
+        writer[0].startsWith('-XX:ArchiveClassesAtExit=')
+        concurrent == []
+
+        when:
+        File archive = new File(writer[0].substring('-XX:ArchiveClassesAtExit='.length()))
+        archive.text = 'archive'
+        def reader = KievCompilerCdsArchive.jvmArgs(cacheDir, kievClasspath, 17, '17.0.8')
+
+        then:
+        reader == ['-XX:SharedArchiveFile=' + archive.absolutePath]
+        !new File(archive.path + '.lock').exists()
+    }
+
+    def 'lets one daemon of JDK 19 and later create the archive automatically'() {
+        when:
+        def writer = KievCompilerCdsArchive.jvmArgs(cacheDir, kievClasspath, 21, '21.0.1')
+        def concurrent = KievCompilerCdsArchive.jvmArgs(cacheDir, kievClasspath, 21, '21.0.1')
+
+        then:
+        writer.size() == 2
+        writer[0] == '-XX:+AutoCreateSharedArchive'
+        writer[1].startsWith('-XX:SharedArchiveFile=')
+        concurrent == []
+
+        when:
+        new File(writer[1].substring('-XX:SharedArchiveFile='.length())).text = 'archive'
+
+        then:
+        KievCompilerCdsArchive.jvmArgs(cacheDir, kievClasspath, 21, '21.0.1') == writer
+    }
+
+    def 'takes over a stale lock'() {
+        given:
+        def writer = KievCompilerCdsArchive.jvmArgs(cacheDir, kievClasspath, 17, '17.0.8')
+        File lock = new File(writer[0].substring('-XX:ArchiveClassesAtExit='.length()) + '.lock')
+        lock.lastModified = 0
+
+        expect:
+        KievCompilerCdsArchive.jvmArgs(cacheDir, kievClasspath, 17, '17.0.8') == writer
+    }
+
+    def 'keeps the archives of other JDKs apart'() {
+        expect:
+        KievCompilerCdsArchive.jvmArgs(cacheDir, kievClasspath, 17, '17.0.8') != KievCompilerCdsArchive.jvmArgs(cacheDir, kievClasspath, 17, '17.0.9')
+    }
+}
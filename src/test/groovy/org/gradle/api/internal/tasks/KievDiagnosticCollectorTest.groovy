@@ -0,0 +1,42 @@
+package org.gradle.api.internal.tasks
+
+import org.symade.kiev.gradle.internal.tasks.compile.KievDiagnostic
+import org.symade.kiev.gradle.internal.tasks.compile.KievDiagnosticCollector
+import spock.lang.Specification
+
+class KievDiagnosticCollectorTest extends Specification {
+
+    def 'formats diagnostics like javac'() {
+        when:
+        def diagnostic = KievDiagnostic.fromMap([kind: 'error', file: '/src/A.kj', line: 12, column: 3, message: 'cannot find symbol'])
+
+        then:
+        diagnostic.kind == KievDiagnostic.Kind.ERROR
+        diagnostic.column == 3
+        diagnostic.toString() == '/src/A.kj:12: error: cannot find symbol'
+    }
+
+    def 'asks the compiler to stop after the maximum number of errors'() {
+        given:
+        def collector = new KievDiagnosticCollector(2, false)
+
+        expect:
+        collector.test([kind: 'warning', message: 'unchecked'])
+        collector.test([kind: 'error', file: '/src/A.kj', line: 1, message: 'first'])
+        !collector.test([kind: 'error', file: '/src/B.kj', line: 2, message: 'second'])
+        collector.errorCount == 2
+        collector.warningCount == 1
+        collector.diagnostics*.message == ['unchecked', 'first', 'second']
+    }
+
+    def 'keeps deferred diagnostics for the result'() {
+        given:
+        def collector = new KievDiagnosticCollector(0, true)
+
+        expect:
+        collector.test([kind: 'error', file: '/src/A.kj', line: 1, message: 'missing class'])
+        !collector.aborted
+        collector.errorCount == 1
+        collector.diagnostics*.message == ['missing class']
+    }
+}
@@ -1,6 +1,7 @@
 package org.gradle.api.internal.tasks
 
 import org.symade.kiev.gradle.api.plugins.KievBasePlugin
+import org.symade.kiev.gradle.internal.plugins.KievJarFileResolver
 import org.gradle.testfixtures.ProjectBuilder
 import spock.lang.Specification
 
@@ -35,4 +36,19 @@ class KievRuntimeTest extends Specification {
         then:
         file == null
     }
+
+    def 'resolves Kiev Jar once per classpath'() {
+        given:
+        def resolver = project.gradle.sharedServices.registrations.getByName(KievJarFileResolver.SERVICE_NAME).service.get()
+        def classpath = [new File('other.jar'), new File('symade-06.jar')]
+
+        when:
+        def first = resolver.resolve(classpath)
+        def second = resolver.resolve(new ArrayList<File>(classpath))
+
+        then:
+        first.file.name == 'symade-06.jar'
+        second.is(first)
+        resolver.resolve([new File('other.jar')]) == null
+    }
 }
@@ -0,0 +1,65 @@
+package org.gradle.api.internal.tasks
+
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import org.symade.kiev.gradle.internal.tasks.compile.KievSourcePartitioner
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+
+class KievSourcePartitionerTest extends Specification {
+
+    @Rule
+    TemporaryFolder tmp = new TemporaryFolder()
+
+    def 'compiles a package after the packages it depends on'() {
+        given:
+        File a = source('a/A.kj', 'package a; class A {}')
+        File b = source('b/B.kj', 'package b; import a.A; class B { A a; }')
+        File c = source('c/C.kj', 'package c; class C {}')
+
+        when:
+        def waves = KievSourcePartitioner.partition([b, a, c], StandardCharsets.UTF_8, 2)
+
+        then:
+        waves.size() == 2
+        waves[0]*.toSet() as Set == [[a] as Set, [c] as Set] as Set
+        waves[1] == [[b]]
+    }
+
+    def 'keeps mutually dependent packages in one partition'() {
+        given:
+        File a = source('a/A.kj', 'package a; class A { b.B b; }')
+        File b = source('b/B.kj', 'package b; class B { a.A a; }')
+        File c = source('c/C.kj', 'package c; class C { a.A a; }')
+
+        when:
+        def waves = KievSourcePartitioner.partition([a, b, c], StandardCharsets.UTF_8, 4)
+
+        then:
+        waves.size() == 2
+        waves[0].size() == 1
+        waves[0][0] as Set == [a, b] as Set
+        waves[1] == [[c]]
+    }
+
+    def 'packs the packages of a wave into the maximum number of partitions'() {
+        given:
+        def sources = (1..5).collect { source("p$it/S${it}.kj", "package p$it; class S$it {}") }
+
+        when:
+        def waves = KievSourcePartitioner.partition(sources, StandardCharsets.UTF_8, 2)
+
+        then:
+        waves.size() == 1
+        waves[0].size() == 2
+        waves[0].flatten() as Set == sources as Set
+    }
+
+    private File source(String path, String content) {
+        File f = new File(tmp.root, path)
+        f.parentFile.mkdirs()
+        f.text = content
+        f
+    }
+}
@@ -0,0 +1,77 @@
+package org.gradle.api.internal.tasks
+
+import org.gradle.api.tasks.WorkResults
+import org.gradle.language.base.internal.compile.Compiler
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import org.symade.kiev.gradle.internal.tasks.compile.DefaultKievJavaJointCompileSpec
+import org.symade.kiev.gradle.internal.tasks.compile.KievJavaJointCompileSpec
+import org.symade.kiev.gradle.internal.tasks.compile.StagingKievCompiler
+import spock.lang.Specification
+
+class StagingKievCompilerTest extends Specification {
+
+    @Rule
+    TemporaryFolder tmp = new TemporaryFolder()
+
+    Map<String, String> classes = [:]
+    File destinationDir
+    File indexFile
+    StagingKievCompiler compiler
+
+    def setup() {
+        destinationDir = tmp.newFolder('classes')
+        File tempDir = tmp.newFolder('tmp')
+        Compiler<KievJavaJointCompileSpec> delegate = { KievJavaJointCompileSpec spec ->
+            classes.each { String path, String content ->
+                File f = new File(spec.destinationDir, path)
+                f.parentFile.mkdirs()
+                f.text = content
+            }
+            WorkResults.didWork(true)
+        } as Compiler<KievJavaJointCompileSpec>
+        indexFile = new File(tempDir, 'previous-output-index.txt')
+        compiler = new StagingKievCompiler(delegate, new File(tempDir, 'staging'), indexFile)
+    }
+
+    def 'only replaces changed class files and deletes stale ones'() {
+        given:
+        classes = ['a/A.class': 'A', 'a/B.class': 'B', 'c/C.class': 'C']
+        compile()
+        File a = new File(destinationDir, 'a/A.class')
+        File b = new File(destinationDir, 'a/B.class')
+        a.lastModified = 1000
+
+        when:
+        classes = ['a/A.class': 'A', 'a/B.class': 'B2']
+        compile()
+
+        then:
+        // A is compared with the destination file, B has another size and is written without comparing
+        a.lastModified() == 1000
+        b.text == 'B2'
+        !new File(destinationDir, 'c').exists()
+        indexLine('a/A.class') =~ /^[0-9a-f]{64} /
+        indexLine('a/B.class').startsWith('- ')
+
+        when:
+        b.lastModified = 2000
+        classes = ['a/A.class': 'A', 'a/B.class': 'B3']
+        compile()
+
+        then:
+        a.lastModified() == 1000
+        b.text == 'B3'
+        b.lastModified() != 2000
+    }
+
+    private String indexLine(String path) {
+        indexFile.readLines().find { it.endsWith(' ' + path) }
+    }
+
+    private void compile() {
+        def spec = new DefaultKievJavaJointCompileSpec()
+        spec.destinationDir = destinationDir
+        compiler.execute(spec)
+    }
+}
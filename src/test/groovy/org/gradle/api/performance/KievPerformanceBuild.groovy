@@ -0,0 +1,179 @@
+package org.gradle.api.performance
+
+import javax.tools.JavaCompiler
+import javax.tools.ToolProvider
+import java.nio.file.Files
+import java.util.jar.JarEntry
+import java.util.jar.JarOutputStream
+
+/**
+ * Generates a multi-project Kiev/Java build for the gradle-profiler scenarios in {@code kiev.scenarios}.
+ *
+ * <p>Every project has Kiev sources in packages of {@link #sourcesPerPackage} files and a Java class
+ * using them. Project {@code pN} depends on {@code pN-1}, and the first class of every package uses the
+ * first class of the previous project, so an ABI change in {@code p0} ripples through the whole build.
+ * The Kiev compiler is a stub compiling the (Java syntax) Kiev sources with the system Java compiler,
+ * packed as {@code libs/symade-06.jar} so that the plugin finds it on the classpath.
+ */
+class KievPerformanceBuild {
+
+    static final String STUB_COMPILER_JAR = 'symade-06.jar'
+
+    int projects = 10
+    int sourcesPerProject = 200
+    int sourcesPerPackage = 25
+
+    /**
+     * The directory of the plugin build to include, or {@code null} if the plugin is put on the
+     * classpath otherwise, e.g. by {@code GradleRunner.withPluginClasspath()}.
+     */
+    File pluginDir
+
+    /**
+     * Usage: {@code KievPerformanceBuild <target dir> <plugin dir> [projects] [sources per project]}
+     */
+    static void main(String[] args) {
+        KievPerformanceBuild build = new KievPerformanceBuild(pluginDir: new File(args[1]))
+        if (args.length > 2) {
+            build.projects = args[2] as int
+        }
+        if (args.length > 3) {
+            build.sourcesPerProject = args[3] as int
+        }
+        build.generate(new File(args[0]))
+    }
+
+    void generate(File rootDir) {
+        if (rootDir.exists()) {
+            rootDir.deleteDir()
+        }
+        rootDir.mkdirs()
+
+        new File(rootDir, 'settings.gradle').text = settingsScript()
+        new File(rootDir, 'gradle.properties').text = """\
+            org.gradle.jvmargs=-Xmx1g
+            org.gradle.caching=false
+            """.stripIndent()
+        new File(rootDir, 'kiev.scenarios').text = KievPerformanceBuild.getResource('/performance/kiev.scenarios').text
+        writeStubCompilerJar(new File(rootDir, "libs/${STUB_COMPILER_JAR}"))
+
+        for (int p = 0; p < projects; p++) {
+            File projectDir = new File(rootDir, "p${p}")
+            projectDir.mkdirs()
+            new File(projectDir, 'build.gradle').text = buildScript(p)
+            for (int i = 0; i < sourcesPerProject; i++) {
+                writeKievSource(projectDir, p, i)
+            }
+            writeJavaSource(projectDir, p)
+        }
+    }
+
+    private String settingsScript() {
+        String script = ''
+        if (pluginDir != null) {
+            script += """\
+                pluginManagement {
+                    includeBuild('${pluginDir.absolutePath.replace('\\', '/')}')
+                }
+                """.stripIndent()
+        }
+        script += "rootProject.name = 'kiev-performance'\n"
+        for (int p = 0; p < projects; p++) {
+            script += "include 'p${p}'\n"
+        }
+        return script
+    }
+
+    private String buildScript(int p) {
+        String dependencies = "    implementation files(rootProject.file('libs/${STUB_COMPILER_JAR}'))\n"
+        if (p > 0) {
+            dependencies += "    implementation project(':p${p - 1}')\n"
+        }
+        return """\
+            |plugins {
+            |    id 'kiev-gradle-plugin'
+            |}
+            |dependencies {
+            |${dependencies}}
+            |tasks.compileJava {
+            |    classpath += files(sourceSets.main.kiev.classesDirectory)
+            |}
+            |""".stripMargin()
+    }
+
+    /**
+     * Kiev sources get the {@code .java} extension, which Kiev accepts and which lets
+     * gradle-profiler apply its ABI and non-ABI changes to them.
+     */
+    private void writeKievSource(File projectDir, int p, int i) {
+        int pkg = i.intdiv(sourcesPerPackage)
+        int cls = i % sourcesPerPackage
+        String call
+        if (cls > 0) {
+            call = "new C${cls - 1}().compute(x)"
+        } else if (p > 0) {
+            call = "new bench.p${p - 1}.k0.C0().compute(x)"
+        } else {
+            call = 'x'
+        }
+        File file = new File(projectDir, "src/main/kiev/bench/p${p}/k${pkg}/C${cls}.java")
+        file.parentFile.mkdirs()
+        file.text = """\
+            |package bench.p${p}.k${pkg};
+            |
+            |public class C${cls} {
+            |    private int value = ${i};
+            |
+            |    public int compute(int x) {
+            |        return ${call} + value;
+            |    }
+            |
+            |    public String describe() {
+            |        return "C${cls} of bench.p${p}.k${pkg}";
+            |    }
+            |}
+            |""".stripMargin()
+    }
+
+    private static void writeJavaSource(File projectDir, int p) {
+        File file = new File(projectDir, "src/main/java/bench/p${p}/JavaUser.java")
+        file.parentFile.mkdirs()
+        file.text = """\
+            |package bench.p${p};
+            |
+            |public class JavaUser {
+            |    public int run() {
+            |        return new bench.p${p}.k0.C0().compute(1);
+            |    }
+            |}
+            |""".stripMargin()
+    }
+
+    private static void writeStubCompilerJar(File jar) {
+        File workDir = Files.createTempDirectory('symade-stub').toFile()
+        try {
+            File source = new File(workDir, 'kiev/Compiler.java')
+            source.parentFile.mkdirs()
+            source.text = KievPerformanceBuild.getResource('/performance/symade-stub/kiev/Compiler.java.txt').text
+            File classesDir = new File(workDir, 'classes')
+            classesDir.mkdirs()
+            JavaCompiler javac = ToolProvider.systemJavaCompiler
+            if (javac == null || javac.run(null, null, null, '-d', classesDir.path, source.path) != 0) {
+                throw new IllegalStateException('Cannot compile the stub Kiev compiler')
+            }
+
+            jar.parentFile.mkdirs()
+            new JarOutputStream(new FileOutputStream(jar)).withCloseable { out ->
+                classesDir.eachFileRecurse { File f ->
+                    if (f.isFile()) {
+                        out.putNextEntry(new JarEntry(classesDir.toPath().relativize(f.toPath()).toString().replace('\\', '/')))
+                        out.write(f.bytes)
+                        out.closeEntry()
+                    }
+                }
+            }
+        } finally {
+            workDir.deleteDir()
+        }
+    }
+}